@@ -0,0 +1,164 @@
+/*
+ *
+ * File:   AsyncLog.java
+ *
+ */
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Class Description:
+ *
+ *   The AsyncLog class writes one of the log files (seqnum.log, ack.log, arrival.log) off the
+ *   path of the protocol. The file is opened once, and log() only stores the sequence number in a
+ *   bounded ring buffer. A background writer thread takes every record in the ring at once, writes
+ *   them as one number per line and flushes the file once per batch.
+ *   When the ring is full log() waits for the writer, so no record is ever dropped before the
+ *   log is closed.
+ *   The log files are the same as the ones written line by line before: they are appended to,
+ *   and contain a single number per line.
+ *
+ *   Every log is closed, and so completely written, by close() or, at the latest, by a shutdown
+ *   hook when the program exits, including through System.exit.
+ *
+ */
+
+public class AsyncLog implements Runnable {
+
+    /* Global Constants */
+    private static final int capacity = 1 << 16;
+    private static final List<AsyncLog> openLogs = new ArrayList<AsyncLog>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                closeAll();
+            }
+        });
+    }
+
+    /* Global Variables */
+    private final String fileName;
+    private final PrintWriter out;
+    private final Thread writer;
+
+    /* Ring buffer of records, guarded by this */
+    private final int ring[] = new int[capacity];
+    private long head = 0;
+    private long tail = 0;
+    private boolean closed = false;
+    private boolean failed = false;
+
+    /* Open the supplied log file for appending and start its writer thread */
+    public AsyncLog(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true), 1 << 16));
+        this.writer = new Thread(this, "log writer " + fileName);
+        this.writer.setDaemon(true);
+        this.writer.start();
+        synchronized (openLogs) {
+            openLogs.add(this);
+        }
+    }
+
+    /* Queue one number to be written on its own line. Records logged once the log is closed are 
+     * dropped. A log whose file could not be written ends the program, outside the lock, so that 
+     * the shutdown hook can still close the logs */
+    public void log(int value) {
+        if (!enqueue(value)) {
+            System.exit(1);
+        }
+    }
+
+    /* Store a record in the ring, waiting while it is full. Returns false if the writer failed */
+    private synchronized boolean enqueue(int value) {
+        while (tail - head == capacity && !failed && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        if (failed) {
+            return false;
+        }
+        if (closed) {
+            return true;
+        }
+        ring[(int) (tail % capacity)] = value;
+        tail++;
+        if (tail - head == 1) {
+            notifyAll();
+        }
+        return true;
+    }
+
+    /* Write out every queued record, then close the file */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != writer) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (openLogs) {
+            openLogs.remove(this);
+        }
+    }
+
+    public static void closeAll() {
+        List<AsyncLog> logs;
+        synchronized (openLogs) {
+            logs = new ArrayList<AsyncLog>(openLogs);
+        }
+        for (AsyncLog log : logs) {
+            log.close();
+        }
+    }
+
+    /* Writer thread: take all queued records at once, write them and flush once per batch */
+    public void run() {
+        int batch[] = new int[capacity];
+        while (true) {
+            int count = 0;
+            synchronized (this) {
+                while (tail == head && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                if (tail == head && closed) {
+                    break;
+                }
+                while (head != tail) {
+                    batch[count++] = ring[(int) (head % capacity)];
+                    head++;
+                }
+                notifyAll();
+            }
+
+            for (int i = 0; i < count; i++) {
+                out.println(batch[i]);
+            }
+            out.flush();
+            if (out.checkError()) {
+                System.err.println("ERROR: Unable to write to the file <" + fileName + ">");
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+                break;
+            }
+        }
+        out.close();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *
+ * File:   BlockInflater.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Class Description:
+ *
+ *   The BlockInflater class turns the frames a CompressionPipeline cut into segments back into
+ *   the raw blocks of the file. The bytes of a stripe are passed in as they were delivered in
+ *   order, in pieces of any size; every frame is collected whole, inflated if it was deflated,
+ *   and its raw block written to the FileSink of the stripe, so the sink only ever holds whole
+ *   blocks. An inflater belongs to the writer thread of its session.
+ *
+ */
+
+public class BlockInflater {
+
+    /* Global Variables */
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer header = ByteBuffer.allocate(CompressionPipeline.frameHeaderLength);
+    private final ByteBuffer data = ByteBuffer.allocate(CompressionPipeline.blockSize);
+    private final ByteBuffer block = ByteBuffer.allocate(CompressionPipeline.blockSize);
+    private int type = 0;
+    private int rawLength = 0;
+    private boolean inFrame = false;
+
+    /* Take the remaining bytes of stream, writing every block completed by them to sink */
+    public void write(ByteBuffer stream, FileSink sink) throws IOException {
+        while (stream.hasRemaining()) {
+            ByteBuffer target = inFrame ? data : header;
+            if (stream.remaining() <= target.remaining()) {
+                target.put(stream);
+            } else {
+                ByteBuffer part = stream.duplicate();
+                part.limit(part.position() + target.remaining());
+                target.put(part);
+                stream.position(part.position());
+            }
+            if (target.hasRemaining()) {
+                return;
+            }
+            if (inFrame) {
+                writeBlock(sink);
+                header.clear();
+                inFrame = false;
+            } else {
+                startFrame();
+            }
+        }
+    }
+
+    /* Read the header of the next frame, checking it describes a frame a pipeline can produce,
+     * every block holds at least one byte */
+    private void startFrame() throws IOException {
+        type = header.get(0);
+        rawLength = header.getInt(1);
+        int length = header.getInt(5);
+        if ((type != CompressionPipeline.stored && type != CompressionPipeline.deflated)
+                || rawLength < 1 || rawLength > CompressionPipeline.blockSize
+                || length < 1 || length > CompressionPipeline.blockSize
+                || (type == CompressionPipeline.stored && length != rawLength)) {
+            throw new IOException("invalid compressed block header");
+        }
+        data.clear();
+        data.limit(length);
+        inFrame = true;
+    }
+
+    private void writeBlock(FileSink sink) throws IOException {
+        data.flip();
+        if (type == CompressionPipeline.stored) {
+            sink.write(data);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(data.array(), 0, data.limit());
+        int inflated = 0;
+        try {
+            inflated = inflater.inflate(block.array(), 0, rawLength);
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed block", e);
+        }
+        if (inflated != rawLength || !inflater.finished()) {
+            throw new IOException("invalid compressed block");
+        }
+        block.clear();
+        block.limit(rawLength);
+        sink.write(block);
+    }
+
+    /* Release the native memory of the inflater */
+    public void close() {
+        inflater.end();
+    }
+}
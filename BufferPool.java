@@ -0,0 +1,48 @@
+/*
+ *
+ * File:   BufferPool.java
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Class Description:
+ *
+ *   The BufferPool class keeps buffers of one size for reuse, so that a program serving one
+ *   transfer after another stops allocating once it has as many buffers as it ever uses at once.
+ *   acquire() hands out a cleared buffer from the pool, or a new one when the pool is empty, and
+ *   release() puts a buffer back, unless the pool already holds as many as it may keep, in which
+ *   case the buffer is left to the garbage collector. Any thread may acquire and release buffers.
+ *
+ */
+
+public class BufferPool {
+
+    /* Global Variables */
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    /* Pool of buffers of bufferSize bytes, keeping at most maxFree of them */
+    public BufferPool(int bufferSize, int maxFree) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(maxFree);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+}
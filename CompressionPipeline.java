@@ -0,0 +1,271 @@
+/*
+ *
+ * File:   CompressionPipeline.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Class Description:
+ *
+ *   The CompressionPipeline class supplies a stream of the Sender with the compressed contents
+ *   of its stripe of the file, so that text and other redundant data takes fewer packets.
+ *   A reader thread reads the stripe ahead in blocks of 64 KB and hands every block to a pool
+ *   of compressor threads shared by all streams, which deflate it at the fastest level and keep
+ *   whichever of the deflated and the raw block is shorter. The results queue up in the order
+ *   of the blocks, at most readAhead of them, and the Sender cuts its segments from the head of
+ *   the queue without ever waiting: when the next block is not ready yet it is told so, and the
+ *   pipeline wakes it up as soon as a block is done. A read error takes its place in the queue
+ *   like a block, so the Sender always learns of it. Closing the pipeline drops the blocks
+ *   queued and takes those no compressor has started on off the shared pool.
+ *   The stream is a sequence of frames, each one block: a type byte (stored or deflated), the
+ *   length of the raw block and the length of the frame data, as ints, then the data. Frames
+ *   run on from one segment into the next, a BlockInflater at the Receiver puts them back
+ *   together and writes the raw blocks in order.
+ *   The reader also keeps the CRC32 of the raw stripe, its digest, as it reads it.
+ *
+ */
+
+public class CompressionPipeline {
+
+    /* Global Constants */
+    public static final int blockSize = 1 << 16;
+    public static final int frameHeaderLength = 9;
+    public static final int stored = 0;
+    public static final int deflated = 1;
+    public static final int synFlag = 1;
+    private static final int readAhead = 16;
+    private static final BufferPool blockPool = new BufferPool(blockSize, 256);
+    private static final BufferPool framePool = new BufferPool(frameHeaderLength + blockSize, 256);
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    /* Global Variables */
+    private final String fileName;
+    private final FileChannel channel;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final ExecutorService compressors;
+    private final Runnable blockDone;
+    private final BlockingQueue<Future<ByteBuffer>> frames = new ArrayBlockingQueue<Future<ByteBuffer>>(readAhead);
+    private final Thread reader;
+    private final CRC32 digest = new CRC32();
+
+    /* Frame being cut into segments, and whether the last one has been */
+    private ByteBuffer frame = null;
+    private boolean finished = false;
+
+    /* Compress the length bytes of the supplied file starting at offset, or as many of them as it
+     * has, on the given compressors, running blockDone whenever a block has been compressed */
+    public CompressionPipeline(String fName, long offset, long length, ExecutorService compressors,
+            Runnable blockDone) throws IOException {
+        this.fileName = fName;
+        this.channel = FileChannel.open(Paths.get(fName), StandardOpenOption.READ);
+        long fileSize = channel.size();
+        this.rangeStart = Math.min(offset, fileSize);
+        this.rangeEnd = rangeStart + Math.min(length, fileSize - rangeStart);
+        this.compressors = compressors;
+        this.blockDone = blockDone;
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                readBlocks();
+            }
+        }, "reader of " + fName);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /* Read the range block by block, queueing the compression of each, and queue the end of it */
+    private void readBlocks() {
+        try {
+            for (long position = rangeStart; position < rangeEnd; position += blockSize) {
+                ByteBuffer block = blockPool.acquire();
+                block.limit((int) Math.min(blockSize, rangeEnd - position));
+                long at = position;
+                while (block.hasRemaining()) {
+                    int read = channel.read(block, at);
+                    if (read < 0) {
+                        throw new EOFException("file shorter than announced");
+                    }
+                    at += read;
+                }
+                block.flip();
+                digest.update(block);
+                block.flip();
+                BlockTask task = new BlockTask(block);
+                frames.put(task);
+                compressors.execute(task);
+            }
+            frames.put(CompletableFuture.completedFuture((ByteBuffer) null));
+            blockDone.run();
+        } catch (InterruptedException e) {
+            /* Closed before the end of the range */
+        } catch (final IOException e) {
+            /* Waits for room like any block, the Sender takes the blocks before it in the meantime */
+            CompletableFuture<ByteBuffer> failed = new CompletableFuture<ByteBuffer>();
+            failed.completeExceptionally(e);
+            try {
+                frames.put(failed);
+            } catch (InterruptedException closed) {
+                return;
+            }
+            blockDone.run();
+        }
+    }
+
+    /* Compression of a block on the compressors, giving the block back to its pool once done. 
+     * The Sender is only told once the result can be taken */
+    private class BlockTask extends FutureTask<ByteBuffer> {
+        private final ByteBuffer block;
+
+        BlockTask(final ByteBuffer block) {
+            super(new Callable<ByteBuffer>() {
+                public ByteBuffer call() {
+                    try {
+                        return compress(block);
+                    } finally {
+                        blockPool.release(block);
+                    }
+                }
+            });
+            this.block = block;
+        }
+
+        protected void done() {
+            blockDone.run();
+        }
+    }
+
+    /* Frame of the block, deflated if that makes it shorter */
+    private static ByteBuffer compress(ByteBuffer block) {
+        ByteBuffer frame = framePool.acquire();
+        int rawLength = block.remaining();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(block.array(), block.arrayOffset() + block.position(), rawLength);
+        deflater.finish();
+        int length = deflater.deflate(frame.array(), frameHeaderLength, rawLength);
+        if (deflater.finished() && length < rawLength) {
+            frame.put(0, (byte) deflated);
+        } else {
+            frame.put(0, (byte) stored);
+            System.arraycopy(block.array(), block.arrayOffset() + block.position(), frame.array(), frameHeaderLength, rawLength);
+            length = rawLength;
+        }
+        frame.putInt(1, rawLength);
+        frame.putInt(5, length);
+        frame.limit(frameHeaderLength + length);
+        return frame;
+    }
+
+    /* Make the current frame one with bytes left if the next one is done, without waiting */
+    private boolean advance() {
+        while (frame == null || !frame.hasRemaining()) {
+            if (finished) {
+                return false;
+            }
+            Future<ByteBuffer> head = frames.peek();
+            if (head == null || !head.isDone()) {
+                return false;
+            }
+            frames.poll();
+            if (frame != null) {
+                framePool.release(frame);
+            }
+            try {
+                frame = head.get();
+            } catch (Exception e) {
+                System.err.println("ERROR: Unable to read the supplied file <" + fileName + ">");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            if (frame == null) {
+                finished = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Whether readSegment() has bytes to give right now */
+    public boolean segmentReady() {
+        return advance();
+    }
+
+    /* Whether every byte of the compressed stripe has been given out */
+    public boolean isFinished() {
+        advance();
+        return finished;
+    }
+
+    /* Copy the next segment, at most length bytes or as many as are ready, into dst, leaving dst
+     * flipped so that its remaining bytes are the segment, and return the number of bytes copied */
+    public int readSegment(ByteBuffer dst, int length) {
+        dst.clear();
+        dst.limit(length);
+        while (dst.hasRemaining() && advance()) {
+            if (frame.remaining() <= dst.remaining()) {
+                dst.put(frame);
+            } else {
+                ByteBuffer part = frame.duplicate();
+                part.limit(part.position() + dst.remaining());
+                dst.put(part);
+                frame.position(part.position());
+            }
+        }
+        dst.flip();
+        return dst.remaining();
+    }
+
+    /* Number of bytes of the raw stripe and their CRC32, once isFinished() */
+    public long getLength() {
+        return rangeEnd - rangeStart;
+    }
+
+    public long getDigest() {
+        return digest.getValue();
+    }
+
+    /* Stop reading ahead, drop the blocks queued, taking those no compressor has started on off 
+     * the compressors, and close the file */
+    public void close() throws IOException {
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Future<ByteBuffer> head;
+        while ((head = frames.poll()) != null) {
+            if (head instanceof BlockTask && compressors instanceof ThreadPoolExecutor
+                    && ((ThreadPoolExecutor) compressors).remove((BlockTask) head)) {
+                blockPool.release(((BlockTask) head).block);
+            } else if (!head.cancel(false)) {
+                try {
+                    ByteBuffer done = head.get();
+                    if (done != null) {
+                        framePool.release(done);
+                    }
+                } catch (Exception e) {
+                    /* A failed block has nothing to give back */
+                }
+            }
+        }
+        if (frame != null) {
+            framePool.release(frame);
+            frame = null;
+        }
+        channel.close();
+    }
+}
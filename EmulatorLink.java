@@ -0,0 +1,245 @@
+/*
+ *
+ * File:   EmulatorLink.java
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+
+/*
+ * Class Description:
+ *
+ *   The EmulatorLink class is one direction of the NetEmulator: it receives datagrams on a
+ *   UDP port and forwards them to a destination after passing them through the impairments
+ *   of the emulator.
+ *   Every datagram is first dropped or not, either independently with the discard probability
+ *   or, when a mean burst length is set, by a two state (Gilbert) loss model that loses whole
+ *   bursts of datagrams while keeping the same overall loss rate. EOT packets are never
+ *   dropped, like in nEmulator, unless -eotloss gives them a loss probability of their own.
+ *   With a bandwidth cap the datagram then waits for the link to transmit the ones before it,
+ *   and is dropped if that queue is full. Finally it is delayed by
+ *   a random time up to the maximum delay, but never sent before a datagram that arrived
+ *   earlier, so that like in nEmulator the order of datagrams is kept. Only datagrams picked
+ *   for reordering are held back by one more maximum delay and let later datagrams overtake
+ *   them. A datagram may also be sent twice, or have one bit flipped if it is a data packet or 
+ *   an ACK, leaving its type as it was.
+ *   All random decisions come from one Random per link, so with a seed the same sequence of
+ *   datagrams meets the same impairments in every run.
+ *   A single thread per link receives datagrams and sends them when they are due, sleeping in a
+ *   Selector until the next datagram arrives or is due.
+ *
+ */
+
+public class EmulatorLink implements Runnable {
+
+    /* Global Constants */
+    private static final int maxDatagram = 65536;
+
+    /* Global Variables */
+    private final NetEmulator emulator;
+    private final String direction;
+    private final InetSocketAddress destination;
+    private final Random random;
+    private final DatagramChannel in;
+    private final DatagramChannel out;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /* Datagrams waiting to be sent, ordered by the time they are due */
+    private final PriorityQueue<Pending> queue = new PriorityQueue<Pending>();
+    private long arrivals = 0;
+    private long linkFree = 0;
+    private long lastDue = 0;
+    private boolean burstLoss = false;
+
+    /* A datagram waiting to be sent, with the order of arrival breaking ties of due times */
+    private static class Pending implements Comparable<Pending> {
+        final byte data[];
+        final long dueTime;
+        final long order;
+
+        Pending(byte data[], long dueTime, long order) {
+            this.data = data;
+            this.dueTime = dueTime;
+            this.order = order;
+        }
+
+        public int compareTo(Pending other) {
+            if (dueTime != other.dueTime) {
+                return (dueTime - other.dueTime < 0) ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /* Receive on port and forward to host:destinationPort, in the given direction of the emulator */
+    public EmulatorLink(NetEmulator emulator, String direction, int port, String host, int destinationPort,
+            long seed) throws IOException {
+        this.emulator = emulator;
+        this.direction = direction;
+        this.destination = new InetSocketAddress(InetAddress.getByName(host), destinationPort);
+        this.random = new Random(seed);
+        this.in = DatagramChannel.open();
+        this.in.bind(new InetSocketAddress(port));
+        this.in.configureBlocking(false);
+        this.out = DatagramChannel.open();
+        this.selector = Selector.open();
+        this.in.register(selector, SelectionKey.OP_READ);
+        this.thread = new Thread(this, direction + " link");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /* Stop forwarding, datagrams still waiting are dropped */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        in.close();
+        out.close();
+    }
+
+    /* Sequence number of the packet in a datagram, for the verbose output */
+    private static int seqNum(byte data[]) {
+        return (data.length < 8) ? -1 : ByteBuffer.wrap(data).getInt(4);
+    }
+
+    /* True if the datagram is an EOT packet, which is only dropped with -eotloss */
+    private static boolean isEOT(byte data[]) {
+        return data.length >= 4 && (ByteBuffer.wrap(data).getInt(0) & 0xFFFF) == 2;
+    }
+
+    /* True if the datagram is an ACK or a data packet with more than its type, which may be corrupted */
+    private static boolean isDataOrAck(byte data[]) {
+        return data.length > 4 && (ByteBuffer.wrap(data).getInt(0) & 0xFFFF) <= 1;
+    }
+
+    /* Decide whether the next datagram is lost */
+    private boolean lose() {
+        double p = emulator.dropProbability;
+        if (emulator.burstLength <= 1) {
+            return random.nextDouble() < p;
+        }
+        /* Gilbert model: leave a burst with probability 1/L, enter one so that the loss rate is p */
+        if (burstLoss) {
+            burstLoss = random.nextDouble() >= 1 / emulator.burstLength;
+        } else {
+            burstLoss = p < 1 && random.nextDouble() < p / (emulator.burstLength * (1 - p));
+        }
+        return burstLoss;
+    }
+
+    /* Decide whether an EOT is lost. The loss model still sees it, so that the other datagrams 
+     * meet the same losses with and without -eotloss */
+    private boolean loseEOT() {
+        lose();
+        return emulator.eotLossProbability > 0 && random.nextDouble() < emulator.eotLossProbability;
+    }
+
+    /* Put a datagram that just arrived through the impairments of the link */
+    private void arrived(byte data[], long currentTime) {
+        long order = arrivals++;
+        if (emulator.verbose) {
+            System.out.println("---> " + direction + " direction: received packet " + seqNum(data));
+        }
+        boolean eot = isEOT(data);
+        if (eot ? loseEOT() : lose()) {
+            if (emulator.verbose) {
+                System.out.println("---> " + direction + " direction: discarded packet " + seqNum(data));
+            }
+            return;
+        }
+
+        /* Wait for the link to transmit the datagrams queued before this one */
+        long sendTime = currentTime;
+        if (emulator.rate > 0) {
+            long transmission = data.length * 8L * 1000000000L / emulator.rate;
+            long start = Math.max(currentTime, linkFree);
+            if (start - currentTime > emulator.queueLimit * transmission && !eot) {
+                if (emulator.verbose) {
+                    System.out.println("---> " + direction + " direction: discarded packet " + seqNum(data));
+                }
+                return;
+            }
+            linkFree = start + transmission;
+            sendTime = linkFree;
+        }
+
+        if (random.nextDouble() < emulator.corruptProbability && isDataOrAck(data)) {
+            int bit = 32 + random.nextInt((data.length - 4) * 8);
+            data[bit / 8] ^= (byte) (1 << (bit % 8));
+            if (emulator.verbose) {
+                System.out.println("---> " + direction + " direction: corrupted packet " + seqNum(data));
+            }
+        }
+
+        int copies = (random.nextDouble() < emulator.duplicateProbability) ? 2 : 1;
+        for (int i = 0; i < copies; i++) {
+            long dueTime = sendTime + (long) (random.nextDouble() * emulator.maxDelay);
+            if (random.nextDouble() < emulator.reorderProbability) {
+                dueTime += Math.max(emulator.maxDelay, 1000000L);
+            } else {
+                if (queue.size() > 0 && dueTime - lastDue < 0) {
+                    dueTime = lastDue;
+                }
+                lastDue = dueTime;
+            }
+            queue.add(new Pending(data, dueTime, order));
+        }
+    }
+
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(maxDatagram);
+        try {
+            while (!closed) {
+                /* Send every datagram that is due */
+                long currentTime = System.nanoTime();
+                while (!queue.isEmpty() && queue.peek().dueTime - currentTime <= 0) {
+                    Pending p = queue.poll();
+                    out.send(ByteBuffer.wrap(p.data), destination);
+                    if (emulator.verbose) {
+                        System.out.println("---> " + direction + " direction: send packet " + seqNum(p.data));
+                    }
+                }
+
+                /* Wait for the next datagram, but no longer than until the next one is due */
+                long wait = 0;
+                if (!queue.isEmpty()) {
+                    wait = Math.max(1, (queue.peek().dueTime - currentTime + 999999) / 1000000);
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+
+                buffer.clear();
+                while (!closed && in.receive(buffer) != null) {
+                    buffer.flip();
+                    byte data[] = new byte[buffer.remaining()];
+                    buffer.get(data);
+                    arrived(data, System.nanoTime());
+                    buffer.clear();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("ERROR: Unable to forward datagrams in the " + direction + " direction.");
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * File:   FileSegmentSource.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Class Description:
+ *
+ *   The FileSegmentSource class supplies the Sender with the contents of the file to be
+ *   transferred, one fixed size segment at a time.
+ *   Instead of reading the whole file into memory, the file is memory-mapped one region at a
+ *   time and each segment is copied out of the current region only when the Sender asks for it.
+ *   The region size is a multiple of the segment size so a segment never straddles two regions.
+ *   Segments are requested in increasing order, so at most one region is mapped at any time and
+ *   the heap use of the Sender does not depend on the size of the file.
+ *   A source may also cover only a byte range of the file, so that several streams can each
+ *   send a stripe of the same file; segment 0 then starts at the beginning of the range.
+ *
+ */
+
+public class FileSegmentSource {
+
+    /* Global Constants */
+    private static final long mapRegionSize = 64L * 1024 * 1024;
+
+    /* Global Variables */
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long rangeStart;
+    private final long rangeEnd;
+    private final int segmentSize;
+    private final long regionSize;
+    private final long segmentCount;
+
+    private MappedByteBuffer region = null;
+    private long regionStart = -1;
+
+    /* Open the supplied file for reading, cutting it into segments of segmentSize bytes */
+    public FileSegmentSource(String fName, int segmentSize) throws IOException {
+        this(fName, segmentSize, 0, Long.MAX_VALUE);
+    }
+
+    /* Open the supplied file for reading, cutting the length bytes starting at offset, or as many
+     * of them as the file has, into segments of segmentSize bytes */
+    public FileSegmentSource(String fName, int segmentSize, long offset, long length) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fName), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+        this.rangeStart = Math.min(offset, fileSize);
+        this.rangeEnd = rangeStart + Math.min(length, fileSize - rangeStart);
+        this.segmentSize = segmentSize;
+        this.regionSize = Math.max(1, mapRegionSize / segmentSize) * segmentSize;
+        this.segmentCount = (rangeEnd - rangeStart + segmentSize - 1) / segmentSize;
+    }
+
+    /* Total number of segments in the range, the last one may be shorter than segmentSize */
+    public long getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /* Offset in the file of the first byte of the range */
+    public long getRangeStart() {
+        return rangeStart;
+    }
+
+    /* Copy the segment with the given index into dst, leaving dst flipped so that its remaining
+     * bytes are the segment, and return the number of bytes copied */
+    public int readSegment(long index, ByteBuffer dst) throws IOException {
+        long relative = index * segmentSize;
+        long offset = rangeStart + relative;
+        if (index < 0 || offset >= rangeEnd) {
+            throw new IOException("segment " + index + " is outside of the file");
+        }
+        int length = (int) Math.min(segmentSize, rangeEnd - offset);
+
+        /* Map the region containing the segment if it is not the current one */
+        long start = offset - (relative % regionSize);
+        if (start != regionStart) {
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, rangeEnd - start));
+            regionStart = start;
+        }
+
+        int position = (int) (offset - regionStart);
+        region.limit(position + length);
+        region.position(position);
+        dst.clear();
+        dst.put(region);
+        dst.flip();
+        region.limit(region.capacity());
+        return length;
+    }
+
+    public void close() throws IOException {
+        region = null;
+        channel.close();
+    }
+}
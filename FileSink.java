@@ -0,0 +1,130 @@
+/*
+ *
+ * File:   FileSink.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+ * Class Description:
+ *
+ *   The FileSink class writes the data delivered by the Receiver into the output file.
+ *   The file is opened once as a FileChannel and payload bytes are copied, unchanged, from the
+ *   receive buffer into a large direct staging buffer, which is written to the file only when it
+ *   is full or when the sink is flushed or closed. So there is one write per megabyte of data
+ *   instead of one open, write and close per packet.
+ *   Data is appended after whatever the file already contains, like the Receiver always did.
+ *   When the Sender announces the size of the file, the space for it can be reserved up front
+ *   with preallocate(); whatever was reserved but not written is cut off again by close().
+ *   A sink can also write a stripe of a file whose FileChannel is shared with other sinks,
+ *   starting at a given position. Such a sink has no staging buffer: the Receiver already hands
+ *   it whole chunks of 64 KB, which it writes straight to the channel at its position, so the
+ *   payload is not copied once more and a Receiver serving many stripes does not hold a
+ *   megabyte of direct memory for each of them. The channel stays open when it is closed.
+ *   A sink can also keep a CRC32 of everything written through it, so the file is checked as
+ *   it is written, without reading it again.
+ *
+ */
+
+public class FileSink {
+
+    /* Global Constants */
+    private static final int stagingSize = 1 << 20;
+
+    /* Global Variables */
+    private final FileChannel channel;
+    private final ByteBuffer staging;
+    private volatile long position;
+    private boolean preallocated = false;
+    private final boolean shared;
+    private CRC32 digest = null;
+
+    /* Open the supplied file for appending, creating it if needed */
+    public FileSink(String fName) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.staging = ByteBuffer.allocateDirect(stagingSize);
+        this.position = channel.size();
+        this.shared = false;
+    }
+
+    /* Write into the channel of another owner, starting at position, without staging */
+    public FileSink(FileChannel channel, long position) {
+        this.channel = channel;
+        this.staging = null;
+        this.position = position;
+        this.shared = true;
+    }
+
+    /* Number of bytes in the file once everything written so far is flushed */
+    public long getPosition() {
+        return staging == null ? position : position + staging.position();
+    }
+
+    /* Number of bytes in the file that have been written to the channel, readable from any thread */
+    public long getWrittenPosition() {
+        return position;
+    }
+
+    /* Reserve room for size more bytes after the data written so far */
+    public void preallocate(long size) throws IOException {
+        long end = getPosition() + size;
+        if (size > 0 && end > channel.size()) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.write(last, end - 1);
+            preallocated = true;
+        }
+    }
+
+    /* Keep the CRC32 of everything written from now on in digest */
+    public void setDigest(CRC32 digest) {
+        this.digest = digest;
+    }
+
+    /* Append the remaining bytes of data, leaving data with none remaining */
+    public void write(ByteBuffer data) throws IOException {
+        if (digest != null) {
+            int start = data.position();
+            digest.update(data);
+            data.position(start);
+        }
+        if (staging != null && data.remaining() > staging.remaining()) {
+            flush();
+        }
+        if (staging == null || data.remaining() >= stagingSize) {
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        } else {
+            staging.put(data);
+        }
+    }
+
+    /* Write the staging buffer to the file */
+    public void flush() throws IOException {
+        if (staging == null) {
+            return;
+        }
+        staging.flip();
+        while (staging.hasRemaining()) {
+            position += channel.write(staging, position);
+        }
+        staging.clear();
+    }
+
+    public void close() throws IOException {
+        flush();
+        if (shared) {
+            return;
+        }
+        if (preallocated && channel.size() > position) {
+            channel.truncate(position);
+        }
+        channel.close();
+    }
+}
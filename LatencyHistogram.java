@@ -0,0 +1,87 @@
+/*
+ *
+ * File:   LatencyHistogram.java
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Class Description:
+ *
+ *   The LatencyHistogram class counts time measurements, in nanoseconds, in buckets of
+ *   logarithmically growing width, in the manner of HdrHistogram: values below 64 have a
+ *   bucket each, and every power of two above is split into 32 buckets, so any value is
+ *   known to within about 3% whatever its magnitude, with less than 2000 buckets in total.
+ *   Recording is a single atomic increment and takes no lock, so any number of threads may
+ *   record while another one reads percentiles.
+ *
+ */
+
+public class LatencyHistogram {
+
+    /* Global Constants */
+    private static final int subBucketBits = 5;
+    private static final int subBucketCount = 1 << subBucketBits;
+    private static final int bucketCount = (63 - subBucketBits) * subBucketCount + 2 * subBucketCount;
+
+    /* Global Variables */
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+    /* Bucket of a non-negative value */
+    private static int bucketOf(long value) {
+        if (value < 2 * subBucketCount) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - subBucketBits;
+        return shift * subBucketCount + (int) (value >>> shift);
+    }
+
+    /* Highest value counted in a bucket */
+    private static long highestValueOf(int bucket) {
+        if (bucket < 2 * subBucketCount) {
+            return bucket;
+        }
+        int shift = bucket / subBucketCount - 1;
+        long subBucket = bucket % subBucketCount + subBucketCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(Math.max(0, value)));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /* Value below which the given percentage of the recorded values lie, 0 if none were recorded */
+    public long getPercentile(double percentile) {
+        long counted[] = new long[bucketCount];
+        long count = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            counted[i] = counts.get(i);
+            count += counted[i];
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counted[i];
+            if (seen >= Math.max(1, rank) && counted[i] > 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) {
+            counts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ * File:   MetricsReporter.java
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Class Description:
+ *
+ *   The MetricsReporter class publishes the metrics of the Sender or the Receiver as an MBean of
+ *   the platform MBean server, where jconsole or any JMX client can read them, and, when asked
+ *   to with -stats, prints a snapshot of them on standard output at a fixed interval from a
+ *   background thread, and once more when the program is done.
+ *   A program that runs more than once in the same JVM replaces the MBean of its previous run.
+ *
+ */
+
+public class MetricsReporter {
+
+    /* Global Variables */
+    private final Callable<String> snapshot;
+    private ScheduledExecutorService timer = null;
+
+    /* Register metrics under the given JMX name, reporting every interval seconds if it is positive */
+    public MetricsReporter(String name, Object metrics, Callable<String> snapshot, int interval) {
+        this.snapshot = snapshot;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metrics, objectName);
+        } catch (Exception e) {
+            System.err.println("WARNING: Unable to register the metrics as " + name);
+        }
+
+        if (interval > 0) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "metrics reporter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    report();
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private void report() {
+        try {
+            System.out.println(snapshot.call());
+        } catch (Exception e) {
+            System.err.println("WARNING: Unable to take a snapshot of the metrics");
+        }
+    }
+
+    /* Stop reporting, after a last snapshot */
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            report();
+        }
+    }
+}
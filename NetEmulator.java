@@ -0,0 +1,215 @@
+/*
+ *
+ * File:   NetEmulator.java
+ *
+ */
+
+import java.io.*;
+
+/*
+ * Class Description:
+ *
+ *   The NetEmulator class is a network emulator written in Java that takes the place of the
+ *   nEmulator binary between the Sender and the Receiver. It forwards the packets of the
+ *   Sender to the Receiver (forward direction) and the ACKs of the Receiver to the Sender
+ *   (backward direction), delaying each datagram by a random time up to the maximum delay and
+ *   discarding it with the discard probability, except EOT packets, like nEmulator does. With
+ *   -eotloss EOT packets are lost with a probability of their own, to exercise the closing
+ *   handshake.
+ *   On top of that it can reorder, duplicate, corrupt, rate limit and burst-drop datagrams, and takes
+ *   a seed so that the impairments can be reproduced from one run to the next. Each direction
+ *   is an EmulatorLink with its own thread.
+ *   The emulator can run on its own from the command line, or inside another program through
+ *   the constructor, the setters, start() and close().
+ *
+ */
+
+/*
+ *
+ * Contract:
+ *
+ * 1.   The NetEmulator class takes the nine command line arguments of nEmulator:
+ *      <UDP port number used by the emulator to receive data from the sender> which is an Integer
+ *      <host address of the receiver> which is a String
+ *      <UDP port number used by the receiver to receive data from the emulator> which is an Integer
+ *      <UDP port number used by the emulator to receive ACKs from the receiver> which is an Integer
+ *      <host address of the sender> which is a String
+ *      <UDP port number used by the sender to receive ACKs from the emulator> which is an Integer
+ *      <maximum delay of the link in milliseconds> which is an Integer
+ *      <packet discard probability> which is a number between 0 and 1
+ *      <verbose mode> which is 1 to print every packet and 0 otherwise
+ *
+ *      For example, the NetEmulator class can be run over the command line as follows:
+ *      java NetEmulator 57110 localhost 57111 57112 localhost 57113 200 0.2 0
+ *
+ * 2.   The nine arguments may be followed by these options, applied in both directions:
+ *      -seed <n>        seed of the random impairments, default different in every run
+ *      -reorder <p>     probability that a packet is held back by one more maximum delay
+ *      -duplicate <p>   probability that a packet is sent twice
+ *      -corrupt <p>     probability that one bit of a data packet or an ACK is flipped, anywhere
+ *                       after the type of the packet
+ *      -rate <bits/s>   bandwidth of the link, default unlimited
+ *      -queue <n>       packets that may wait for a rate limited link, default 100
+ *      -burst <l>       mean length of bursts of lost packets, default 1 (independent losses)
+ *      -eotloss <p>     probability that an EOT packet is discarded, default 0, since
+ *                       nEmulator never discards them
+ *
+ */
+
+public class NetEmulator {
+
+    /* Impairments shared by both directions, read by the links */
+    final long maxDelay;
+    final double dropProbability;
+    final boolean verbose;
+    double reorderProbability = 0;
+    double duplicateProbability = 0;
+    double corruptProbability = 0;
+    long rate = 0;
+    int queueLimit = 100;
+    double burstLength = 1;
+    double eotLossProbability = 0;
+    private long seed = System.nanoTime();
+
+    /* Global Variables */
+    private final int forwardPort;
+    private final String receiverAddress;
+    private final int receiverPort;
+    private final int backwardPort;
+    private final String senderAddress;
+    private final int senderPort;
+    private EmulatorLink forward = null;
+    private EmulatorLink backward = null;
+
+    public NetEmulator(int forwardPort, String receiverAddress, int receiverPort, int backwardPort,
+            String senderAddress, int senderPort, int maxDelay, double dropProbability, boolean verbose) {
+        this.forwardPort = forwardPort;
+        this.receiverAddress = receiverAddress;
+        this.receiverPort = receiverPort;
+        this.backwardPort = backwardPort;
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.maxDelay = maxDelay * 1000000L;
+        this.dropProbability = dropProbability;
+        this.verbose = verbose;
+    }
+
+    public NetEmulator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public NetEmulator setReorder(double probability) {
+        this.reorderProbability = probability;
+        return this;
+    }
+
+    public NetEmulator setDuplicate(double probability) {
+        this.duplicateProbability = probability;
+        return this;
+    }
+
+    public NetEmulator setCorrupt(double probability) {
+        this.corruptProbability = probability;
+        return this;
+    }
+
+    /* Bandwidth in bits per second, with the number of packets that may wait for the link */
+    public NetEmulator setRate(long rate, int queueLimit) {
+        this.rate = rate;
+        this.queueLimit = queueLimit;
+        return this;
+    }
+
+    public NetEmulator setBurst(double burstLength) {
+        this.burstLength = burstLength;
+        return this;
+    }
+
+    public NetEmulator setEotLoss(double probability) {
+        this.eotLossProbability = probability;
+        return this;
+    }
+
+    /* Open both ports and start forwarding */
+    public void start() throws IOException {
+        forward = new EmulatorLink(this, "forward", forwardPort, receiverAddress, receiverPort, seed);
+        backward = new EmulatorLink(this, "backward", backwardPort, senderAddress, senderPort, seed + 1);
+        forward.start();
+        backward.start();
+    }
+
+    public void close() throws IOException {
+        forward.close();
+        backward.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        /* Validate input arguments */
+        if (args.length < 9) {
+            System.err.println("ERROR: NetEmulator class requires nine arguments as follow:");
+            System.err.println("       <UDP port number used by the emulator to receive data from the sender>");
+            System.err.println("       <host address of the receiver>");
+            System.err.println("       <UDP port number used by the receiver to receive data from the emulator>");
+            System.err.println("       <UDP port number used by the emulator to receive ACKs from the receiver>");
+            System.err.println("       <host address of the sender>");
+            System.err.println("       <UDP port number used by the sender to receive ACKs from the emulator>");
+            System.err.println("       <maximum delay of the link in milliseconds>");
+            System.err.println("       <packet discard probability>");
+            System.err.println("       <verbose mode>");
+            System.err.println("       followed by any of the options:");
+            System.err.println("       -seed <n> -reorder <p> -duplicate <p> -corrupt <p> -rate <bits/s> -queue <n> -burst <l> -eotloss <p>.");
+            System.exit(1);
+        }
+
+        NetEmulator emulator = null;
+        try {
+            int ports[] = { Integer.parseInt(args[0]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[5]) };
+            for (int port : ports) {
+                if (port < 0 || port > 65535) {
+                    System.err.println("ERROR: Out of range port number.");
+                    System.exit(1);
+                }
+            }
+            int maxDelay = Integer.parseInt(args[6]);
+            double dropProbability = Double.parseDouble(args[7]);
+            if (maxDelay < 0 || dropProbability < 0 || dropProbability > 1) {
+                System.err.println("ERROR: Invalid maximum delay or discard probability.");
+                System.exit(1);
+            }
+            emulator = new NetEmulator(ports[0], args[1], ports[1], ports[2], args[4], ports[3],
+                    maxDelay, dropProbability, Integer.parseInt(args[8]) != 0);
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: Invalid input argument, " + e.getMessage() + ".");
+            System.exit(1);
+        }
+
+        try {
+            Options options = new Options(args, 9, "-seed", "-reorder", "-duplicate", "-corrupt", "-rate", "-queue", "-burst", "-eotloss");
+            emulator.setSeed(options.getLong("-seed", emulator.seed));
+            emulator.setReorder(options.getDouble("-reorder", 0));
+            emulator.setDuplicate(options.getDouble("-duplicate", 0));
+            emulator.setCorrupt(options.getDouble("-corrupt", 0));
+            emulator.setRate(options.getLong("-rate", 0), options.getInt("-queue", emulator.queueLimit));
+            emulator.setBurst(options.getDouble("-burst", 1));
+            emulator.setEotLoss(options.getDouble("-eotloss", 0));
+        } catch (Exception e) {
+            System.err.println("ERROR: Invalid option, " + e.getMessage() + ".");
+            System.exit(1);
+        }
+
+        try {
+            emulator.start();
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to open the ports of the emulator.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        /* Forward until the emulator is stopped */
+        while (true) {
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *
+ * File:   Options.java
+ *
+ */
+
+import java.util.*;
+
+/*
+ * Class Description:
+ *
+ *   The Options class parses the optional command line arguments that may follow the
+ *   positional arguments of the Sender, the Receiver and the NetEmulator.
+ *   Options are given as pairs of a name starting with '-' and a value, for example:
+ *   java Sender localhost 58110 58113 Test -mode sr
+ *   Only the names supplied by the caller are accepted, anything else is reported as an error.
+ *
+ */
+
+public class Options {
+
+    /* Global Variables */
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    /* Parse args starting at index first, accepting only the option names in allowed */
+    public Options(String[] args, int first, String... allowed) throws Exception {
+        List<String> names = Arrays.asList(allowed);
+        for (int i = first; i < args.length; i += 2) {
+            if (!names.contains(args[i])) {
+                throw new Exception("unknown option " + args[i]);
+            }
+            if (i + 1 >= args.length) {
+                throw new Exception("missing value for option " + args[i]);
+            }
+            values.put(args[i], args[i + 1]);
+        }
+    }
+
+    public String get(String name, String defaultValue) {
+        String value = values.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public int getInt(String name, int defaultValue) throws Exception {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("invalid value for option " + name + ": " + value);
+        }
+    }
+
+    public double getDouble(String name, double defaultValue) throws Exception {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("invalid value for option " + name + ": " + value);
+        }
+    }
+
+    public long getLong(String name, long defaultValue) throws Exception {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("invalid value for option " + name + ": " + value);
+        }
+    }
+
+    /* Value of an option that must be one of choices */
+    public String getChoice(String name, String defaultValue, String... choices) throws Exception {
+        String value = get(name, defaultValue);
+        if (!Arrays.asList(choices).contains(value)) {
+            throw new Exception("invalid value for option " + name + ": " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *
+ * File:   Pacer.java
+ *
+ */
+
+/*
+ * Class Description:
+ *
+ *   The Pacer class spaces out the data packets of a stream of the Sender, so that a window
+ *   that opens all at once does not leave as one burst that overflows the queue in front of
+ *   the slowest link of the path and loses many packets in a row.
+ *   It is a token bucket: tokens are bytes that build up at the pacing rate, measured with
+ *   System.nanoTime, up to what the rate gives in burstTime and at least two datagrams, and a
+ *   datagram may only be sent once there are tokens for all of its bytes. delay() tells how
+ *   long to wait for them, sent() takes them.
+ *   The rate is either fixed or, in auto mode, estimated from the ACKs, like the delivery rate
+ *   of BBR: when a packet is sent the pacer notes how many bytes had been acknowledged so far
+ *   and when, and when the packet is acknowledged the bytes acknowledged in between, over the
+ *   longer of the time between the two sends and the time between the two ACKs, are a sample
+ *   of the bandwidth of the bottleneck. The estimate is the largest sample of the last period
+ *   or so, the caller chooses its length, usually a few round trips, and packets are paced at
+ *   gain times the estimate, a little faster, so that the estimate follows the bandwidth when
+ *   it grows. Until the first sample the stream is not paced at all.
+ *   Sending times and samples are kept per window slot, like the packets of the Sender.
+ *   A pacer belongs to the thread of its stream.
+ *
+ */
+
+public class Pacer {
+
+    /* Global Constants */
+    private static final double gain = 1.25;
+    private static final long burstTime = 250000L;
+
+    /* Global Variables */
+    private final boolean auto;
+    private final int datagramSize;
+    private final int slotMask;
+
+    /* Pacing rate in bytes per nanosecond, 0 while not paced, and the token bucket */
+    private double rate = 0;
+    private double tokens = 0;
+    private long refillTime = 0;
+
+    /* Bytes acknowledged so far, when the last of them was, and when the packet acknowledged
+       last was sent, with the same three noted for the packet in every slot when it was sent */
+    private long delivered = 0;
+    private long deliveredTime = 0;
+    private long ackedSentTime = 0;
+    private final long sentDelivered[];
+    private final long sentDeliveredTime[];
+    private final long sentAckedSentTime[];
+    private final long sentTime[];
+
+    /* Largest bandwidth sample of the current period and of the one before */
+    private double maxSample = 0;
+    private double previousMaxSample = 0;
+    private long periodStart = 0;
+
+    /* Pace at bitsPerSecond, or at the estimated bandwidth if auto, datagrams of at most
+     * datagramSize bytes, with the given number of window slots, a power of two */
+    public Pacer(long bitsPerSecond, boolean auto, int datagramSize, int slots, long now) {
+        this.auto = auto;
+        this.datagramSize = datagramSize;
+        this.slotMask = slots - 1;
+        this.rate = auto ? 0 : bitsPerSecond / 8e9;
+        this.tokens = burst();
+        this.refillTime = now;
+        this.deliveredTime = now;
+        this.ackedSentTime = now;
+        sentDelivered = new long[slots];
+        sentDeliveredTime = new long[slots];
+        sentAckedSentTime = new long[slots];
+        sentTime = new long[slots];
+    }
+
+    private double burst() {
+        return Math.max(2.0 * datagramSize, rate * burstTime);
+    }
+
+    private void refill(long now) {
+        if (now > refillTime) {
+            tokens = Math.min(burst(), tokens + (now - refillTime) * rate);
+            refillTime = now;
+        }
+    }
+
+    /* Nanoseconds to wait from now before a datagram of the given bytes may be sent, 0 if it may now */
+    public long delay(long now, int bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill(now);
+        if (tokens >= bytes) {
+            return 0;
+        }
+        return (long) Math.ceil((bytes - tokens) / rate);
+    }
+
+    /* A datagram of the given bytes that holds no packet of the window was sent at now */
+    public void sent(long now, int bytes) {
+        if (rate > 0) {
+            refill(now);
+            tokens -= bytes;
+        }
+    }
+
+    /* A datagram of the given bytes holding the packet in slot was sent at now */
+    public void sent(int slot, long now, int bytes) {
+        sent(now, bytes);
+        slot &= slotMask;
+        sentDelivered[slot] = delivered;
+        sentDeliveredTime[slot] = deliveredTime;
+        sentAckedSentTime[slot] = ackedSentTime;
+        sentTime[slot] = now;
+    }
+
+    /* The packet in slot, of the given bytes, was acknowledged at now. In auto mode the bandwidth
+     * is sampled and the largest samples of the last two periods of period nanoseconds kept */
+    public void acked(int slot, long now, int bytes, long period) {
+        slot &= slotMask;
+        delivered += bytes;
+        deliveredTime = now;
+        ackedSentTime = sentTime[slot];
+        if (!auto) {
+            return;
+        }
+        long interval = Math.max(sentTime[slot] - sentAckedSentTime[slot], now - sentDeliveredTime[slot]);
+        if (interval <= 0) {
+            return;
+        }
+        double sample = (delivered - sentDelivered[slot]) / (double) interval;
+        if (now - periodStart > period) {
+            previousMaxSample = maxSample;
+            maxSample = 0;
+            periodStart = now;
+        }
+        maxSample = Math.max(maxSample, sample);
+        rate = gain * Math.max(maxSample, previousMaxSample);
+    }
+
+    /* Current pacing rate in bits per second, 0 while not paced */
+    public long getRate() {
+        return (long) (rate * 8e9);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * File:   ParityBlock.java
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Class Description:
+ *
+ *   The ParityBlock class computes the parity packets of forward error correction. When the
+ *   Sender and the Receiver agree on it in the SYN, the Sender follows every block of k new data
+ *   packets, and any shorter block it has to cut short, with a parity packet (packet type 4):
+ *   the XOR of the data of the packets of the block, without their checksums, each padded with
+ *   zeros to the longest of them, after the number of packets in the block and the XOR of their
+ *   lengths, as ints. The parity packet has a checksum of its own.
+ *   Its sequence number is the one of the first packet of the block.
+ *   From the parity and all packets of a block but one, the Receiver rebuilds the missing one,
+ *   length and all, by XORing them together again, and goes on as if it had arrived, without
+ *   waiting for the Sender to resend it. A block that lost more than one packet is recovered by
+ *   retransmission as usual. Parity packets are never acknowledged nor resent.
+ *   The Sender cuts a block short one round trip after its first packet when the window keeps
+ *   it from filling up, since its missing packet may be what holds up the ACKs, and waits for
+ *   k more duplicate ACKs than usual before a fast retransmit. The ACK of a rebuilt packet, and
+ *   in Go-Back-N of the packets held behind it, comes late and carries a one byte mark.
+ *   The same class adds up the payloads of a block at the Sender and the payloads that did
+ *   arrive at the Receiver, in 8-byte steps.
+ *
+ */
+
+public class ParityBlock {
+
+    /* Global Constants */
+    public static final int headerLength = 8;
+    public static final int maxBlock = 256;
+    public static final int synFlag = 4;
+
+    /* Global Variables */
+    private final ByteBuffer parity;
+    private int count = 0;
+    private int lengths = 0;
+    private int longest = 0;
+
+    /* Parity of payloads of at most segmentSize bytes, with room for a checksum after it */
+    public ParityBlock(int segmentSize) {
+        parity = ByteBuffer.allocate(headerLength + segmentSize + SegmentChecksum.length);
+    }
+
+    /* Start over with no payload added */
+    public void reset() {
+        Arrays.fill(parity.array(), 0, headerLength + longest, (byte) 0);
+        count = 0;
+        lengths = 0;
+        longest = 0;
+    }
+
+    /* Number of payloads added since the last reset */
+    public int getCount() {
+        return count;
+    }
+
+    /* XOR the remaining bytes of data into the parity, leaving data as it was */
+    public void add(ByteBuffer data) {
+        int length = data.remaining();
+        int from = data.position();
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            parity.putLong(headerLength + i, parity.getLong(headerLength + i) ^ data.getLong(from + i));
+        }
+        for (; i < length; i++) {
+            parity.put(headerLength + i, (byte) (parity.get(headerLength + i) ^ data.get(from + i)));
+        }
+        count++;
+        lengths ^= length;
+        longest = Math.max(longest, length);
+    }
+
+    /* Payload of the parity packet of the payloads added, valid until the next reset, with room
+     * for a checksum past its limit */
+    public ByteBuffer payload() {
+        parity.putInt(0, count);
+        parity.putInt(4, lengths);
+        parity.clear();
+        parity.limit(headerLength + longest);
+        return parity;
+    }
+
+    /* Rebuild into dst, flipped, the payload missing from those added, of the block whose parity
+     * packet payload is announced. Returns false if the parity cannot be of one more payload
+     * than those added, of at most the capacity of dst */
+    public boolean recover(ByteBuffer announced, ByteBuffer dst) {
+        int at = announced.position();
+        if (announced.remaining() < headerLength || announced.getInt(at) != count + 1) {
+            return false;
+        }
+        int length = announced.getInt(at + 4) ^ lengths;
+        if (length < 0 || length > dst.capacity() || length > announced.remaining() - headerLength) {
+            return false;
+        }
+        dst.clear();
+        for (int i = 0; i < length; i++) {
+            byte others = i < longest ? parity.get(headerLength + i) : 0;
+            dst.put((byte) (announced.get(at + headerLength + i) ^ others));
+        }
+        dst.flip();
+        return true;
+    }
+}
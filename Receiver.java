@@ -8,8 +8,14 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.io.PrintWriter;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
 
 /* 
  * Class Description:
@@ -20,12 +26,28 @@ import java.io.PrintWriter;
  *   sender with the sequence number equal to the sequence number of the received packet. 
  *   In all other cases, it discards the received packet and resends an ACK packet for the most 
  *   recently received inorder packet;    
+ *   Every stream of a Sender is a session of its own, identified by the session ID carried in 
+ *   each packet and kept in a ReceiverSession, so any number of Senders may send to the same 
+ *   port at once. The SYN (packet type 3) of a stream opens its session and is answered with 
+ *   the segment size and options the receiver agrees to and how many bytes of the stripe it 
+ *   already holds, or with a segment size of 0 if another transfer uses its session ID. The 
+ *   streams of a file write into one output file of a ReceiverTransfer, each at the offset of 
+ *   its stripe, through a small pool of writer threads, so the disk never holds up the packets. 
+ *   The receiver waits on a non-blocking DatagramChannel in a Selector and on every wakeup reads 
+ *   all packets that have arrived. 
  *   After  the  receiver  has  received  all  data  packets  and  an  EOT  from  the  sender,  
  *   it  sends  an  EOT  packet then exit. 
+ *   It remembers a finished session for a few timeouts of the Sender, to answer its EOT again 
+ *   if the answer was lost, and exits once its transfers are finished and no session is left. 
  *   The  receiver  program  generates  a  log  file, namely  arrival.log
  *   The file arrival.log contains the sequence numbers of all the data packets that 
  *   the receiver receives during the entire period of transmission, in form of a single number per line. 
  *
+ *   In Selective Repeat mode (-mode sr) every packet inside the receive window is acknowledged 
+ *   individually. Packets that arrive out of order are kept in a reorder buffer of one slot per 
+ *   window position, and are written to the file in order as soon as the packets before them arrive. 
+ *   Packets from the previous window are acknowledged again, since their ACK may have been lost. 
+ *
  */
 
 /*
@@ -41,90 +63,543 @@ import java.io.PrintWriter;
  *      For example, the Receiver class can be run over the command line as follows:
  *      java Receiver localhost 57112 57111 OutputFile
  *
- * 2.   The Network Emulator  must be running before the Receiver is run.
+ * 2.   The four arguments may be followed by these options:
+ *      -mode <gbn|sr>   Go-Back-N (default) or Selective Repeat, must match the Sender
+ *      -window <n>      receive window in packets for Selective Repeat, default 10
+ *      -seqbits <b>     bits of sequence number carried in packets (1 to 32), default 5,
+ *                       must match the Sender
+ *      -sessions <n>    number of transfers to receive before exiting, default 1, 0 runs
+ *                       forever. With more than one transfer the data of a transfer of the
+ *                       file f of the Sender is written to <name of the file>.f, or to
+ *                       <name of the file>.f.s while another transfer of session s writes
+ *                       to that file
+ *      -ackto <emulator|sender>  send ACKs to the network emulator (default) or to the
+ *                       address each Sender sends from, for Senders connected directly. A
+ *                       session then only takes packets from the address that opened it
+ *      -writers <n>     threads writing the output files, default 4
+ *      -ackevery <k>    in Go-Back-N, acknowledge at least every k packets delivered in
+ *                       order, default 8, 1 acknowledges every packet. Packets delivered in
+ *                       order are acknowledged by the cumulative ACK of the last of them, at
+ *                       the latest at the end of the burst, an unexpected packet at once
+ *      -ackdelay <ms>   in Go-Back-N, hold the ACK of packets delivered in order for up to
+ *                       ms milliseconds, default 0: until the end of the burst of packets
+ *      -maxsegment <bytes>  largest data segment accepted from a Sender, default 65495,
+ *                       the largest that fits in a UDP datagram
+ *      -checkpoint <s>  checkpoint every transfer to <name of the file>.ckpt every s seconds
+ *                       and resume it from there when it is sent again, default 0 (never).
+ *                       The output file is overwritten instead of appended to
+ *      -idle <s>        give up a session that has received nothing for s seconds, default
+ *                       120, 0 never. A transfer whose sessions were all given up counts
+ *                       as finished, its checkpoint is kept. A transfer is known by the
+ *                       address of its Sender and the name, size, modification time and
+ *                       streams of its file, a SYN from that address but from another run
+ *                       of the Sender replaces the session of its stripe at once
+ *      -stats <s>       print a snapshot of the metrics every s seconds, default 0 (never).
+ *                       They are also published over JMX as GoBackN:type=Receiver
+ *      -logs <on|off>   write arrival.log, default on
+ *
+ * 3.   The Network Emulator  must be running before the Receiver is run.
  *
  */
 
 public class Receiver {
 
     /* Global Constants */
-    private static final int timeOut = 100;
-    private static final Integer windowSize = 10;
-    private static final Integer packetSize = 500;
-    private static final Integer seqNumModulo = 32;
+    private static final int maxBurst = 64;
+    private static final int maxWindowSize = 1 << 20;
     private static final String logFile = "arrival.log";
 
+    /* Timeouts of the Sender to remember a finished session for, to answer its EOT again if it 
+       is resent, between minLinger and maxLinger */
+    private static final int lingerTimeouts = 8;
+    private static final long minLinger = 50000000L;
+    private static final long maxLinger = 10000000000L;
+
     /* Global Variables */
     private static String netEmuAddress = null;
     private static Integer netEmuACKPort = 0;
     private static Integer receiverPort = 0;
     private static String fileName = null;
+    private static InetSocketAddress emulatorAddress = null;
+
+    /* Receive window and sequence number space, set with -window and -seqbits */
+    private static int windowSize = 10;
+    private static SequenceSpace seqSpace = null;
+    private static boolean selectiveRepeat = false;
+
+    private static packet ackPacket = new packet();
+
+    /* Sessions by session ID and transfers by their source, with the number of transfers to serve 
+       set with -sessions */
+    private static Map<Integer, ReceiverSession> sessions = new HashMap<Integer, ReceiverSession>();
+    private static Map<String, ReceiverTransfer> transfers = new HashMap<String, ReceiverTransfer>();
+    private static int transferLimit = 1;
+    private static int transfersStarted = 0;
+    private static int transfersFinished = 0;
+    private static int sessionsOpened = 0;
+    private static TimerWheel timers = null;
+    private static boolean ackToSender = false;
+    private static ExecutorService writers[] = null;
+
+    /* Largest segment size agreed on with a Sender, set with -maxsegment */
+    private static int maxSegment = packet.maxSegmentLength;
+
+    /* Time between checkpoints of a transfer, set with -checkpoint, 0 for none */
+    private static long checkpointInterval = 0;
+
+    /* Time after which a session that receives nothing is given up, set with -idle, 0 for never */
+    private static long idleTimeout = 0;
 
-    private static Integer expectedSeqNum = 0;
-    private static Integer packetSeqNum = 0;
-    private static Integer previousPacket = -1;
-    private static packet ackPacket = null;
+    /* ACK coalescing of Go-Back-N, set with -ackevery and -ackdelay */
+    private static int ackEvery = 8;
+    private static long ackDelay = 0;
 
-    private static DatagramSocket receiverSocket = null;
+    private static DatagramChannel receiverChannel = null;
+    private static Selector selector = null;
 
-    /* Write the data string to the file supplied by fileName, with two options:
-     * Option 0: write to the file without an End-Of-Line charachter 
-     * Option 1: write to the file with an End-Of-Line charachter 
-     */
-    public static void writeToFile(String fileName, String data, int option) throws Exception {
+    /* Sessions with an ACK to send at the end of the current burst */
+    private static List<ReceiverSession> ackQueue = new ArrayList<ReceiverSession>();
+
+    /* Datagram buffers reused for every packet received and every ACK and SYN sent, the receive 
+       buffer takes the largest segment that may be agreed on */
+    private static ByteBuffer sendBuffer = ByteBuffer.allocate(packet.headerLength + 16);
+    private static ByteBuffer receiveBuffer = null;
+    private static ByteBuffer synAnswer = ByteBuffer.allocate(16);
+    private static ByteBuffer ackChecksum = ByteBuffer.allocate(1 + SegmentChecksum.length);
+    private static CRC32 ackCrc = new CRC32();
+    private static packet receiveTemp = new packet();
+    private static final ByteBuffer noData = ByteBuffer.allocate(0);
+
+    /* Time of the current wakeup, when the packets being handled arrived */
+    private static long receiveTime = 0;
+
+    /* Log of the sequence numbers of arriving packets, written by a background thread unless -logs off */
+    private static boolean logPackets = true;
+    private static AsyncLog arrivalLog = null;
+
+    /* Metrics of all sessions, printed every statsInterval seconds if it is positive */
+    private static final ReceiverMetrics metrics = new ReceiverMetrics();
+    private static int statsInterval = 0;
+
+    /* Send UDP packet to the specified address via the given datagramchannel. If the socket buffer 
+     * has no room for it the packet is dropped, like a packet lost in the network */
+    public static void packetSend(packet p, InetSocketAddress address, DatagramChannel channel) throws Exception {
+        /* Serialize the packet straight into the shared send buffer */
+        sendBuffer.clear();
+        p.encode(sendBuffer);
+        sendBuffer.flip();
 
         try {
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
-            /* Write to the file without an End-Of-Line charachter */
-            if (option == 0) {
-                out.print(data);
-            } 
-            /* Write to the file with an End-Of-Line charachter */
-            else {
-                out.println(data);
-            }
-            out.close();
+            channel.send(sendBuffer, address);
         } catch (Exception e) {
-            System.err.println("ERROR: Unable to write to the file <" + fileName + ">");
+            System.err.println("ERROR: Unable to send the UDP Datagram.");
             e.printStackTrace();
             System.exit(1);
         }
     }
 
-    /* Send UDP packet to the specified hostAddress and port number via the given datagramsocket */
-    public static void packetSend(packet p, String hostAddress, Integer port, DatagramSocket socket) throws Exception {
-        byte[] sendData = p.getUDPdata();
-        InetAddress IPAddress = null;
-        /* Extract the IP address of the Network Emulator from hostAddress */
-        try {
-            IPAddress = InetAddress.getByName(netEmuAddress);
-        } catch (Exception e) {
-            System.err.println("ERROR: Unable to obtain the IP address of the Network Emulator.");
-            e.printStackTrace();
-            System.exit(1);
+    /* Send a packet of the given session to wherever its ACKs go, with a checksum if it is an ACK 
+     * of a session that agreed on checksums */
+    public static void sessionSend(ReceiverSession s, packet p) throws Exception {
+        p.setSession(s.getId());
+        if (p.getType() == 0 && s.isChecksummed()) {
+            /* After the mark of a late ACK, if it has one */
+            ackChecksum.clear();
+            ackChecksum.put(p.getPayload().duplicate()).flip();
+            SegmentChecksum.append(ackCrc, s.getId(), p.getSeqNum(), ackChecksum);
+            p.set(0, p.getSeqNum(), ackChecksum);
+        }
+        packetSend(p, s.replyAddress, receiverChannel);
+    }
+
+    /* Send the cumulative ACK of a session, if it has one pending */
+    public static void sendPendingAck(ReceiverSession s) throws Exception {
+        timers.cancel(s.ackTimer);
+        if (s.takePendingAck(ackPacket)) {
+            sessionSend(s, ackPacket);
+            metrics.ackSent();
+        }
+    }
+
+    /* Send the ACKs left pending by the packets of the burst */
+    public static void flushAcks() throws Exception {
+        for (ReceiverSession s : ackQueue) {
+            s.ackQueued = false;
+            sendPendingAck(s);
+        }
+        ackQueue.clear();
+    }
+
+    /* Open the session announced by a SYN, with its transfer if it is the first stream of it, 
+     * unless all transfers to serve have been started. A session still receiving the same stripe 
+     * of the transfer belongs to a Sender that was restarted, and is given up first */
+    public static ReceiverSession openSession(packet syn, InetSocketAddress from) throws Exception {
+        /* The SYN announces the size of the file, then the offset of the stripe of the stream, 
+           the transfer it belongs to, the number of streams of the transfer, the proposed 
+           segment size, flags asking for options such as compression, the parity block length, 
+           the modification time of the file, the stream and the name of the file */
+        ByteBuffer announcement = syn.getPayload();
+        int position = announcement.position();
+        long size = 0;
+        long offset = 0;
+        int transferId = syn.getSession();
+        int streams = 1;
+        int segmentSize = packet.maxDataLength;
+        int flags = 0;
+        int fecBlock = 0;
+        long modified = 0;
+        int stream = 0;
+        String name = null;
+        int agreed = CompressionPipeline.synFlag | SegmentChecksum.synFlag | ParityBlock.synFlag;
+        if (announcement.remaining() >= 8) {
+            size = announcement.getLong(position);
+        }
+        if (announcement.remaining() >= 24) {
+            offset = announcement.getLong(position + 8);
+            transferId = announcement.getInt(position + 16);
+            streams = Math.max(1, announcement.getInt(position + 20));
+        }
+        if (announcement.remaining() >= 28) {
+            segmentSize = Math.max(1, Math.min(announcement.getInt(position + 24), maxSegment));
+        }
+        if (announcement.remaining() >= 32) {
+            flags = announcement.getInt(position + 28) & agreed;
+        }
+        if (announcement.remaining() >= 36) {
+            fecBlock = announcement.getInt(position + 32);
+        }
+        if (announcement.remaining() > 48) {
+            modified = announcement.getLong(position + 36);
+            stream = announcement.getInt(position + 44);
+            byte bytes[] = new byte[announcement.remaining() - 48];
+            ((ByteBuffer) announcement.duplicate().position(position + 48)).get(bytes);
+            name = new String(bytes, StandardCharsets.UTF_8).replaceAll("[^A-Za-z0-9._-]", "_");
+            if (name.startsWith(".")) {
+                name = "_" + name;
+            }
+        }
+        /* The streams of a Sender send from consecutive ports, while through the emulator all 
+           packets come from its port. A Sender that does not name its file is known by its 
+           address and session only */
+        int port = ackToSender ? from.getPort() - stream : from.getPort();
+        String source = from.getAddress().getHostAddress() + ":" + port + "/"
+                + (name == null ? "#" + transferId : name + "/" + size + "/" + modified + "/" + streams);
+        /* Parity blocks have to fit in the sequence space, and a parity packet, a little longer than 
+           the segments, in the largest segment */
+        if (fecBlock < 1 || fecBlock > Math.min(ParityBlock.maxBlock, seqSpace.size() - 1)
+                || maxSegment <= ParityBlock.headerLength + SegmentChecksum.length) {
+            flags &= ~ParityBlock.synFlag;
         }
-        
-        DatagramPacket sendPacket
-                = new DatagramPacket(sendData, sendData.length, IPAddress, port);
+        if ((flags & ParityBlock.synFlag) != 0) {
+            segmentSize = Math.min(segmentSize, maxSegment - ParityBlock.headerLength - SegmentChecksum.length);
+        }
+        /* The checksum has to fit in a segment along with some data */
+        if (segmentSize <= SegmentChecksum.length) {
+            flags &= ~SegmentChecksum.synFlag;
+        }
+
+        ReceiverTransfer t = transfers.get(source);
+        if (t == null) {
+            if (transferLimit > 0 && transfersStarted >= transferLimit) {
+                return null;
+            }
+            String output = outputName(name, transferId);
+            try {
+                t = new ReceiverTransfer(transferId, source, output, streams, size,
+                        checkpointInterval > 0 ? new TransferCheckpoint(output) : null);
+            } catch (Exception e) {
+                System.err.println("ERROR: Unable to write to the file <" + output + ">");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            try {
+                t.preallocate(size);
+            } catch (IOException e) {
+                System.err.println("WARNING: Unable to reserve space in the file <" + output + ">");
+            }
+            transfers.put(source, t);
+            transfersStarted++;
+            if (checkpointInterval > 0) {
+                timers.schedule(t.checkpointTimer, System.nanoTime() + checkpointInterval);
+            }
+        }
+
+        /* A Sender restarted under another session ID finds the old session still on the stripe, 
+           it comes from the same address but from another run */
+        for (ReceiverSession old : new ArrayList<ReceiverSession>(sessions.values())) {
+            if (old.getTransfer() == t && old.getOffset() == offset && !old.finished
+                    && old.synSeqNum != syn.getSeqNum()) {
+                retireSession(old);
+            }
+        }
+
+        int writer = sessionsOpened % writers.length;
+        ReceiverSession s = new ReceiverSession(syn.getSession(), t, offset, segmentSize, flags, fecBlock, seqSpace, windowSize, selectiveRepeat, ackEvery,
+                writers[writer], metrics);
+        if (ackToSender) {
+            s.replyAddress = from;
+        } else {
+            s.replyAddress = emulatorAddress;
+        }
+        s.announcement = ByteBuffer.allocate(announcement.remaining());
+        s.announcement.put(announcement.duplicate()).flip();
+        s.synSeqNum = syn.getSeqNum();
+        s.lastPacketTime = System.nanoTime();
+        if (idleTimeout > 0) {
+            timers.schedule(s.timer, s.lastPacketTime + idleTimeout);
+        }
+        sessions.put(syn.getSession(), s);
+        sessionsOpened++;
+        metrics.sessionOpened();
+        return s;
+    }
+
+    /* Name of the output file of a transfer of the named file of a Sender: the supplied file 
+     * name if there is a single transfer to serve, else with the name of the file of the Sender, 
+     * or its session, appended, and the session as well if another transfer writes to that file */
+    public static String outputName(String name, int transferId) {
+        if (transferLimit == 1) {
+            return fileName;
+        }
+        String output = fileName + "." + (name == null || name.isEmpty() ? String.valueOf(transferId) : name);
+        for (ReceiverTransfer t : transfers.values()) {
+            if (t.getFileName().equals(output)) {
+                return output + "." + transferId;
+            }
+        }
+        return output;
+    }
+
+    /* Give up a session that will receive nothing more, writing out what it received so that a 
+     * later session of the stripe carries on after it */
+    public static void retireSession(ReceiverSession s) throws Exception {
+        timers.cancel(s.ackTimer);
+        timers.cancel(s.timer);
+        ackQueue.remove(s);
+        s.ackQueued = false;
+        if (sessions.get(s.getId()) == s) {
+            sessions.remove(s.getId());
+        }
+        s.retire();
+        s.finished = true;
+        metrics.sessionClosed();
+    }
+
+    /* Give up a transfer that has no session left, keeping its checkpoint. It counts as finished */
+    public static void abandonTransfer(ReceiverTransfer t) throws Exception {
+        timers.cancel(t.checkpointTimer);
+        t.abandon();
+        transfers.remove(t.getSource());
+        transfersFinished++;
+        System.err.println("WARNING: Transfer into <" + t.getFileName() + "> given up, no session of it is left");
+    }
+
+    /* Have a writer thread checkpoint the transfer, so the event loop never waits for the disk */
+    public static void checkpoint(final ReceiverTransfer t) {
+        writers[t.getId() % writers.length].execute(new Runnable() {
+            public void run() {
+                try {
+                    t.checkpoint();
+                } catch (IOException e) {
+                    System.err.println("WARNING: Unable to checkpoint the file <" + t.getFileName() + ">");
+                }
+            }
+        });
+    }
+
+    /* Send the pending ACKs that are due, checkpoint the transfers that are due, give up sessions 
+     * that have been idle too long and forget sessions that finished long enough ago. The timer 
+     * of a session runs until it has been idle for idleTimeout, then from its EOT until the 
+     * session is forgotten */
+    public static void runTimers(long currentTime) throws Exception {
+        TimerWheel.Timer timer;
+        while ((timer = timers.poll(currentTime)) != null) {
+            if (timer.getOwner() instanceof ReceiverTransfer) {
+                checkpoint((ReceiverTransfer) timer.getOwner());
+                timers.schedule(timer, currentTime + checkpointInterval);
+                continue;
+            }
+            ReceiverSession s = (ReceiverSession) timer.getOwner();
+            if (timer == s.ackTimer) {
+                sendPendingAck(s);
+            } else if (s.finished) {
+                if (sessions.get(s.getId()) == s) {
+                    sessions.remove(s.getId());
+                }
+            } else if (currentTime - s.lastPacketTime >= idleTimeout) {
+                System.err.println("WARNING: Session " + s.getId() + " given up after receiving nothing for "
+                        + idleTimeout / 1000000000L + " seconds");
+                retireSession(s);
+                if (s.getTransfer().getOpenStripes() == 0) {
+                    abandonTransfer(s.getTransfer());
+                }
+            } else {
+                timers.schedule(timer, s.lastPacketTime + idleTimeout);
+            }
+        }
+    }
 
+    /* Time to remember a finished session whose Sender resends its EOT after timeout nanoseconds */
+    public static long linger(long timeout) {
+        return Math.min(maxLinger, Math.max(minLinger, lingerTimeouts * timeout));
+    }
+
+    /* Close a session whose EOT has come, and its transfer once it was the last stream of it */
+    public static void closeSession(ReceiverSession s, ByteBuffer announced) throws Exception {
+        /* All data has been delivered, acknowledge and write out what is left of it, then check 
+           it against the digest of the Sender */
+        sendPendingAck(s);
+        s.close();
+        verifyStripe(s, announced);
+        s.finished = true;
+        metrics.sessionClosed();
+        if (s.getTransfer().finishStream(s.getOffset())) {
+            timers.cancel(s.getTransfer().checkpointTimer);
+            transfers.remove(s.getTransfer().getSource());
+            transfersFinished++;
+        }
+    }
+
+    /* Compare the stripe a session wrote with the digest the Sender announced in its EOT */
+    public static void verifyStripe(ReceiverSession s, ByteBuffer announced) {
+        ByteBuffer written = s.getDigest();
+        if (written == null || announced.remaining() < SegmentChecksum.digestLength) {
+            return;
+        }
+        boolean matched = s.verify(announced);
+        metrics.stripeVerified(matched);
+        if (matched) {
+            System.out.println(String.format("Session %d verified: %d bytes, CRC32 %08x", s.getId(),
+                    written.getLong(0), written.getInt(8)));
+        } else {
+            System.err.println(String.format("WARNING: Session %d wrote %d bytes with CRC32 %08x, the Sender sent %d bytes with CRC32 %08x",
+                    s.getId(), written.getLong(0), written.getInt(8), announced.getLong(announced.position()),
+                    announced.getInt(announced.position() + 8)));
+        }
+    }
+
+    /* Handle the packet in the receive buffer, which came from the given address */
+    public static void packetReceived(InetSocketAddress from) throws Exception {
+        /* Parse the contents of the received packet in place into a temporary, 
+           its payload remains a view over the receive buffer. Whatever is no packet is dropped */
         try {
-            socket.send(sendPacket);
+            packet.parseUDPdata(receiveBuffer, receiveTemp);
         } catch (Exception e) {
-            System.err.println("ERROR: Unable to send the UDP Datagram.");
-            e.printStackTrace();
-            System.exit(1);
+            metrics.corruptPacket();
+            return;
+        }
+        ReceiverSession s = sessions.get(receiveTemp.getSession());
+
+        /* With ACKs sent back to the Senders, a session is only known to the address that opened it */
+        boolean foreign = s != null && ackToSender && !from.equals(s.replyAddress);
+        if (foreign && receiveTemp.getType() != 3) {
+            s = null;
+        }
+        if (s != null && !foreign) {
+            s.lastPacketTime = receiveTime;
+        }
+
+        /* A data packet (packet type 1) or a parity packet (packet type 4) has been received */
+        if (receiveTemp.getType() == 1 || receiveTemp.getType() == 4) {
+            if (receiveTemp.getType() == 1) {
+                metrics.packetReceived();
+
+                /* Write the sequence number of arriving packets into the logFile */
+                if (logPackets) {
+                    arrivalLog.log(receiveTemp.getSeqNum());
+                }
+            } else {
+                metrics.parityReceived();
+            }
+
+            /* Packets of unknown or finished sessions are ignored */
+            if (s != null && !s.finished) {
+                boolean answer = receiveTemp.getType() == 1 ? s.receive(receiveTemp, ackPacket)
+                        : s.receiveParity(receiveTemp, ackPacket);
+                if (answer) {
+                    timers.cancel(s.ackTimer);
+                    sessionSend(s, ackPacket);
+                    metrics.ackSent();
+                }
+                /* Hold a pending ACK until the end of the burst, or until its delay is over */
+                if (s.hasPendingAck()) {
+                    if (ackDelay > 0) {
+                        if (!s.ackTimer.isScheduled()) {
+                            timers.schedule(s.ackTimer, System.nanoTime() + ackDelay);
+                        }
+                    } else if (!s.ackQueued) {
+                        s.ackQueued = true;
+                        ackQueue.add(s);
+                    }
+                }
+            }
+
+        /* A SYN packet (packet type 3) has been received, opening a session and announcing the size of the file */
+        } else if (receiveTemp.getType() == 3) {
+            if (s != null && (foreign || !s.announcement.equals(receiveTemp.getPayload()))) {
+                /* The session ID is in use by another transfer, tell the Sender to take another one */
+                synAnswer.putInt(0, 0);
+                synAnswer.putLong(4, 0);
+                synAnswer.putInt(12, 0);
+                ackPacket.set(3, receiveTemp.getSeqNum(), synAnswer);
+                ackPacket.setSession(receiveTemp.getSession());
+                packetSend(ackPacket, ackToSender ? from : emulatorAddress, receiverChannel);
+                return;
+            }
+            /* A SYN of another run of the Sender of the session, which was restarted */
+            if (s != null && receiveTemp.getSeqNum() != s.synSeqNum) {
+                if (!s.finished) {
+                    retireSession(s);
+                }
+                s = null;
+            }
+            if (s == null) {
+                s = openSession(receiveTemp, from);
+            }
+            if (s != null && !s.finished) {
+                /* Answer with the agreed segment size, the bytes of the stripe already stored and 
+                   the flags agreed to */
+                synAnswer.putInt(0, s.getSegmentSize());
+                synAnswer.putLong(4, s.getResumed());
+                synAnswer.putInt(12, s.getFlags());
+                ackPacket.set(3, receiveTemp.getSeqNum(), synAnswer);
+                sessionSend(s, ackPacket);
+            }
+
+        /* An EOT packet (packet type 2) has been received */
+        } else if (receiveTemp.getType() == 2 && s != null) {
+            /* The EOT tells how many microseconds the Sender waits before resending it, then 
+               carries the digest of the stripe */
+            ByteBuffer announced = receiveTemp.getPayload();
+            long timeout = 0;
+            if (announced.remaining() >= 4) {
+                timeout = (announced.getInt(announced.position()) & 0xFFFFFFFFL) * 1000;
+                announced.position(announced.position() + 4);
+            }
+            if (!s.finished) {
+                closeSession(s, announced);
+            }
+
+            /* Answer with an EOT carrying what the session wrote, also when the EOT was resent 
+               because the answer was lost, and remember the session for a while after */
+            ByteBuffer digest = s.getDigest();
+            sessionSend(s, digest == null ? packet.createEOT(s.getPreviousPacket())
+                    : packet.createEOT(s.getPreviousPacket(), digest));
+            timers.schedule(s.timer, System.nanoTime() + linger(timeout));
         }
     }
 
     public static void main(String[] args) throws Exception {
        
         /* Validate input arguments */
-        if (args.length != 4) {
-            System.err.println("ERROR: Receiver class requires exactly four arguments as follow:");
+        if (args.length < 4) {
+            System.err.println("ERROR: Receiver class requires four arguments as follow:");
             System.err.println("       <host address of the network emulator>");
             System.err.println("       <UDP port number used by the emulator to receive ACKs from the receiver>");
             System.err.println("       <UDP port number used by the receiver to receive data from the emulator>");
-            System.err.println("       <name of the file into which the received data is written>.");
+            System.err.println("       <name of the file into which the received data is written>");
+            System.err.println("       followed by any of the options:");
+            System.err.println("       -mode <gbn|sr> -window <n> -seqbits <b> -sessions <n> -ackto <emulator|sender> -writers <n> -ackevery <k> -ackdelay <ms> -maxsegment <bytes> -checkpoint <s> -idle <s> -stats <s> -logs <on|off>.");
             System.exit(1);
         }
         try {
@@ -155,56 +630,131 @@ public class Receiver {
             System.err.println("ERROR: Out of range port number.");
             System.exit(1);
         }
-        /* Create a receiverSocket with the supplied receiverPort */
         try {
-            receiverSocket = new DatagramSocket(receiverPort);
+            Options options = new Options(args, 4, "-mode", "-window", "-seqbits", "-sessions", "-ackto", "-writers", "-ackevery", "-ackdelay", "-maxsegment", "-checkpoint", "-idle", "-stats", "-logs");
+            selectiveRepeat = options.getChoice("-mode", "gbn", "gbn", "sr").equals("sr");
+            windowSize = options.getInt("-window", windowSize);
+            seqSpace = new SequenceSpace(options.getInt("-seqbits", 5));
+            transferLimit = options.getInt("-sessions", transferLimit);
+            ackToSender = options.getChoice("-ackto", "emulator", "emulator", "sender").equals("sender");
+            writers = new ExecutorService[Math.max(1, options.getInt("-writers", 4))];
+            ackEvery = options.getInt("-ackevery", ackEvery);
+            ackDelay = options.getInt("-ackdelay", 0) * 1000000L;
+            maxSegment = options.getInt("-maxsegment", maxSegment);
+            checkpointInterval = options.getInt("-checkpoint", 0) * 1000000000L;
+            idleTimeout = options.getInt("-idle", 120) * 1000000000L;
+            if (maxSegment < 1 || maxSegment > packet.maxSegmentLength) {
+                throw new Exception("invalid value for option -maxsegment: " + maxSegment);
+            }
+            statsInterval = options.getInt("-stats", 0);
+            logPackets = options.getChoice("-logs", "on", "on", "off").equals("on");
+        } catch (Exception e) {
+            System.err.println("ERROR: Invalid option, " + e.getMessage() + ".");
+            System.exit(1);
+        }
+        /* Selective Repeat needs a window of at most half of the sequence space */
+        long windowLimit = Math.min(seqSpace.size() / 2, maxWindowSize);
+        if (selectiveRepeat && (windowSize < 1 || windowSize > windowLimit)) {
+            System.err.println("ERROR: Window size must be between 1 and " + windowLimit + ".");
+            System.exit(1);
+        }
+        if (checkpointInterval < 0 || idleTimeout < 0) {
+            System.err.println("ERROR: -checkpoint and -idle must not be negative.");
+            System.exit(1);
+        }
+        if (ackEvery < 1 || ackDelay < 0) {
+            System.err.println("ERROR: -ackevery must be at least 1 and -ackdelay must not be negative.");
+            System.exit(1);
+        }
+        if (transferLimit < 0) {
+            System.err.println("ERROR: Number of sessions must not be negative.");
+            System.exit(1);
+        }
+        for (int i = 0; i < writers.length; i++) {
+            final String name = "file writer " + i;
+            writers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        /* Resolve the address of the Network Emulator once, ACKs are sent to it unless -ackto sender */
+        try {
+            emulatorAddress = new InetSocketAddress(InetAddress.getByName(netEmuAddress), netEmuACKPort);
         } catch (Exception e) {
-            System.err.println("ERROR: Unable to create receiverSocket.");
+            System.err.println("ERROR: Unable to obtain the IP address of the Network Emulator.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        /* Create a non-blocking receiverChannel with the supplied receiverPort */
+        try {
+            receiverChannel = DatagramChannel.open();
+            receiverChannel.bind(new InetSocketAddress(receiverPort));
+            receiverChannel.configureBlocking(false);
+            selector = Selector.open();
+            receiverChannel.register(selector, SelectionKey.OP_READ);
+        } catch (Exception e) {
+            System.err.println("ERROR: Unable to create receiverChannel.");
             e.printStackTrace();
             System.exit(1);
         }
 
-        while (true) {
-            byte[] receiveData = new byte[1024];
-            
-            DatagramPacket receivePacket
-                    = new DatagramPacket(receiveData, receiveData.length);
+        if (logPackets) {
+            try {
+                arrivalLog = new AsyncLog(logFile);
+            } catch (Exception e) {
+                System.err.println("ERROR: Unable to write to the file <" + logFile + ">");
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        MetricsReporter reporter = new MetricsReporter("GoBackN:type=Receiver", metrics, new Callable<String>() {
+            public String call() {
+                return metrics.getSnapshot();
+            }
+        }, statsInterval);
 
-            receiverSocket.receive(receivePacket);
-            
-            /* Parse the contents of the received packet and store it into a temporary  */
-            packet receiveTemp = packet.parseUDPdata(receivePacket.getData());
-            
-            /* A data packet (packet type 1) has been received */
-            if (receiveTemp.getType() == 1) {
-                
-                /* Write the sequence number of arriving packets into the logFile */
-                writeToFile(logFile, Integer.toString(receiveTemp.getSeqNum()), 1);
-                
-                if (receiveTemp.getSeqNum() == expectedSeqNum) {
-                    previousPacket = receiveTemp.getSeqNum();
-                    ackPacket = packet.createACK(previousPacket);
-                    packetSend(ackPacket, netEmuAddress, netEmuACKPort, receiverSocket);
-                    writeToFile(fileName, (new String(receiveTemp.getData())), 0);
-                    expectedSeqNum = (expectedSeqNum + 1) % seqNumModulo;
-                } else if (previousPacket > -1) {
-                    ackPacket = packet.createACK(previousPacket);
-                    packetSend(ackPacket, netEmuAddress, netEmuACKPort, receiverSocket);
+        timers = new TimerWheel(System.nanoTime());
+        receiveBuffer = ByteBuffer.allocate(packet.headerLength + maxSegment);
+
+        while (transferLimit == 0 || transfersFinished < transferLimit || !sessions.isEmpty()) {
+            /* Wait for packets, but no longer than until the next timer expires */
+            long wait = 0;
+            long nextDeadline = timers.nextDeadline();
+            if (nextDeadline != Long.MAX_VALUE) {
+                wait = Math.max(1, (nextDeadline - System.nanoTime() + 999999) / 1000000);
+            }
+            selector.select(wait);
+            selector.selectedKeys().clear();
+            receiveTime = System.nanoTime();
+
+            /* Handle every packet that has arrived, sending the pending ACKs after each burst */
+            int burst = 0;
+            while (true) {
+                receiveBuffer.clear();
+                InetSocketAddress from = (InetSocketAddress) receiverChannel.receive(receiveBuffer);
+                if (from == null) {
+                    break;
+                }
+                receiveBuffer.flip();
+                packetReceived(from);
+                if (++burst == maxBurst) {
+                    flushAcks();
+                    burst = 0;
                 }
-                
-            /* An EOT packet (packet type 2) has been received */
-            } else if (receiveTemp.getType() == 2) {
-                /* Create an EOT packet */
-                ackPacket = packet.createEOT(previousPacket);
-                
-                /* Wait for 1 second to account for future sender packets
-                   and ensure all ACKs have been delivered */
-                Thread.sleep(1000);
-                
-                packetSend(ackPacket, netEmuAddress, netEmuACKPort, receiverSocket);
-                receiverSocket.close();
-                return;
             }
+            flushAcks();
+
+            runTimers(System.nanoTime());
+        }
+
+        selector.close();
+        receiverChannel.close();
+        reporter.close();
+        if (logPackets) {
+            arrivalLog.close();
         }
     }
 
@@ -0,0 +1,169 @@
+/*
+ *
+ * File:   ReceiverMetrics.java
+ *
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class Description:
+ *
+ *   The ReceiverMetrics class counts what happens to the packets a Receiver gets, over all of
+ *   its sessions, for JMX and for the snapshots printed with -stats. The thread of the Receiver
+ *   and the writer threads update it without taking any lock, every counter being a LongAdder.
+ *
+ */
+
+public class ReceiverMetrics implements ReceiverMetricsMBean {
+
+    /* Global Variables */
+    private final long startTime = System.nanoTime();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder packetsDelivered = new LongAdder();
+    private final LongAdder packetsBuffered = new LongAdder();
+    private final LongAdder packetsDiscarded = new LongAdder();
+    private final LongAdder duplicatePackets = new LongAdder();
+    private final LongAdder corruptPackets = new LongAdder();
+    private final LongAdder parityPackets = new LongAdder();
+    private final LongAdder packetsRebuilt = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsClosed = new LongAdder();
+    private final LongAdder stripesVerified = new LongAdder();
+    private final LongAdder stripesMismatched = new LongAdder();
+
+    public void packetReceived() {
+        packetsReceived.increment();
+    }
+
+    public void packetDelivered(int bytes) {
+        packetsDelivered.increment();
+        bytesDelivered.add(bytes);
+    }
+
+    public void packetBuffered() {
+        packetsBuffered.increment();
+    }
+
+    public void packetDiscarded() {
+        packetsDiscarded.increment();
+    }
+
+    public void duplicatePacket() {
+        duplicatePackets.increment();
+    }
+
+    public void corruptPacket() {
+        corruptPackets.increment();
+    }
+
+    public void parityReceived() {
+        parityPackets.increment();
+    }
+
+    public void packetRebuilt() {
+        packetsRebuilt.increment();
+    }
+
+    public void ackSent() {
+        acksSent.increment();
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void sessionOpened() {
+        sessionsOpened.increment();
+    }
+
+    public void sessionClosed() {
+        sessionsClosed.increment();
+    }
+
+    public void stripeVerified(boolean matched) {
+        if (matched) {
+            stripesVerified.increment();
+        } else {
+            stripesMismatched.increment();
+        }
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    public long getPacketsDelivered() {
+        return packetsDelivered.sum();
+    }
+
+    public long getPacketsBuffered() {
+        return packetsBuffered.sum();
+    }
+
+    public long getPacketsDiscarded() {
+        return packetsDiscarded.sum();
+    }
+
+    public long getDuplicatePackets() {
+        return duplicatePackets.sum();
+    }
+
+    public long getCorruptPackets() {
+        return corruptPackets.sum();
+    }
+
+    public long getParityPackets() {
+        return parityPackets.sum();
+    }
+
+    public long getPacketsRebuilt() {
+        return packetsRebuilt.sum();
+    }
+
+    public long getAcksSent() {
+        return acksSent.sum();
+    }
+
+    public long getBytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public double getGoodput() {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? bytesDelivered.sum() * 1e9 / elapsed : 0;
+    }
+
+    public long getSessionsOpened() {
+        return sessionsOpened.sum();
+    }
+
+    public long getActiveSessions() {
+        return sessionsOpened.sum() - sessionsClosed.sum();
+    }
+
+    public long getStripesVerified() {
+        return stripesVerified.sum();
+    }
+
+    public long getStripesMismatched() {
+        return stripesMismatched.sum();
+    }
+
+    public String getSnapshot() {
+        return String.format("received %d, delivered %d, buffered %d, discarded %d, duplicates %d, corrupt %d, "
+                + "parity %d, rebuilt %d, acks %d, delivered %d bytes, written %d bytes, goodput %.1f KB/s, sessions %d, active %d, "
+                + "verified %d, mismatched %d",
+                getPacketsReceived(), getPacketsDelivered(), getPacketsBuffered(), getPacketsDiscarded(),
+                getDuplicatePackets(), getCorruptPackets(), getParityPackets(), getPacketsRebuilt(), getAcksSent(), getBytesDelivered(), getBytesWritten(),
+                getGoodput() / 1e3, getSessionsOpened(), getActiveSessions(), getStripesVerified(),
+                getStripesMismatched());
+    }
+}
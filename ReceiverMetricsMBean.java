@@ -0,0 +1,59 @@
+/*
+ *
+ * File:   ReceiverMetricsMBean.java
+ *
+ */
+
+/*
+ * Interface Description:
+ *
+ *   Attributes of the ReceiverMetrics of a running Receiver, as seen over JMX under the name
+ *   GoBackN:type=Receiver. Counters cover the whole run of the Receiver, over all sessions.
+ *
+ */
+
+public interface ReceiverMetricsMBean {
+
+    /* Data packets received, delivered in order, buffered out of order, and discarded: out of
+     * order in Go-Back-N, or outside the receive window in Selective Repeat */
+    long getPacketsReceived();
+
+    long getPacketsDelivered();
+
+    long getPacketsBuffered();
+
+    long getPacketsDiscarded();
+
+    /* Data packets that had already been received, only their ACK was lost */
+    long getDuplicatePackets();
+
+    /* Datagrams dropped as damaged: not a valid packet, or a data packet whose checksum did not match */
+    long getCorruptPackets();
+
+    /* Parity packets received, and data packets rebuilt from them instead of being resent */
+    long getParityPackets();
+
+    long getPacketsRebuilt();
+
+    long getAcksSent();
+
+    /* Payload bytes delivered in order, and written to the output files by the writer threads */
+    long getBytesDelivered();
+
+    long getBytesWritten();
+
+    /* Bytes per second delivered since the start */
+    double getGoodput();
+
+    long getSessionsOpened();
+
+    long getActiveSessions();
+
+    /* Stripes whose digest, announced in the EOT of the Sender, matched what was written, and did not */
+    long getStripesVerified();
+
+    long getStripesMismatched();
+
+    /* All of the above on one line */
+    String getSnapshot();
+}
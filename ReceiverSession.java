@@ -0,0 +1,588 @@
+/*
+ *
+ * File:   ReceiverSession.java
+ *
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/*
+ * Class Description:
+ *
+ *   The ReceiverSession class holds everything the Receiver knows about one transfer: the
+ *   Go-Back-N or Selective Repeat receive window, the output file and where its ACKs are sent.
+ *   A session is opened by the SYN of a Sender and identified by the session ID carried in
+ *   every packet, so one Receiver can serve many transfers on the same port at once.
+ *   When the Sender stripes a file over several streams, each stream is a session writing its
+ *   stripe of the file of their common ReceiverTransfer.
+ *
+ *   The window logic runs on the thread of the Receiver, but the output file is written by a
+ *   writer thread shared with other sessions. Payload bytes are copied into chunks of 64 KB,
+ *   and every full chunk is handed to the writer, which puts it through the FileSink of the
+ *   session and gives it back. Since a session always uses the same single writer thread, its
+ *   chunks are written in order. At most 16 chunks are in use per session; when all of them
+ *   wait for the disk the Receiver waits too, instead of buffering without limit.
+ *   When the Sender compresses the stripe, the writer thread also puts the chunks through the 
+ *   BlockInflater of the session before they reach the FileSink, so inflating never holds up 
+ *   the Receiver either.
+ *   With checksums agreed on, every data packet is checked before anything else and dropped if 
+ *   it was damaged, and the sink keeps the digest of the stripe, which is compared with the one 
+ *   the Sender announces in its EOT once everything has been written.
+ *   With forward error correction agreed on, the session keeps a copy of the last packets it 
+ *   delivered, as many as a block holds, and in Go-Back-N also holds the packets that arrive 
+ *   less than a block ahead of their turn instead of discarding them, without a duplicate ACK. 
+ *   Once the parity packet of the block of the expected packet has come and that packet is all 
+ *   the block is missing, the session rebuilds it with a ParityBlock and receives it as if it 
+ *   had arrived, so the packets held after it are delivered too and the Sender never has to 
+ *   resend it. Blocks may be shorter than agreed on, the parity tells where each one starts. 
+ *   The ACK of a rebuilt or held packet comes only after the parity, so it carries a one byte 
+ *   mark that keeps the Sender from taking its round trip time. 
+ *   A session whose Sender was restarted or went silent is retired instead of closed: it writes 
+ *   out what it received and hands the stripe back to its transfer unfinished, for the session 
+ *   of the restarted Sender to carry on after it. 
+ *   Chunks and the reorder buffers of Selective Repeat come from pools shared by all sessions, 
+ *   one pool per segment size agreed on, and go back to them when the session is closed, so a 
+ *   Receiver serving one transfer after another allocates no new buffers once the pools hold 
+ *   enough of them.
+ *
+ */
+
+public class ReceiverSession {
+
+    /* Global Constants */
+    private static final int chunkSize = 1 << 16;
+    private static final int maxChunks = 16;
+    private static final ByteBuffer noData = ByteBuffer.allocate(0);
+    /* Payload of an ACK that covers packets rebuilt or held behind a gap */
+    private static final ByteBuffer lateMark = ByteBuffer.wrap(new byte[] { 1 });
+    private static final BufferPool chunkPool = new BufferPool(chunkSize, 256);
+    private static final CRC32 packetCrc = new CRC32();
+    private static final int segmentPoolBytes = 1 << 25;
+    private static final Map<Integer, BufferPool> segmentPools = new HashMap<Integer, BufferPool>();
+
+    /* Global Variables */
+    private final int id;
+    private final ReceiverTransfer transfer;
+    private final long offset;
+    private final String fileName;
+    private final int segmentSize;
+    private final BufferPool segmentPool;
+    private final long resumed;
+    private final int flags;
+    private final BlockInflater inflater;
+    private final CRC32 digest;
+    private final int fecBlock;
+    private final long start;
+    private final SequenceSpace seqSpace;
+    private final int windowSize;
+    private final boolean selectiveRepeat;
+    private final int ackEvery;
+    private final ReceiverMetrics metrics;
+
+    private int expectedSeqNum = 0;
+    private int previousPacket = 0;
+    private boolean inOrderReceived = false;
+
+    /* Go-Back-N: packets delivered in order since the last ACK was sent */
+    private int pendingPackets = 0;
+    /* Whether one of them was rebuilt or held behind a gap, so the ACK comes late */
+    private boolean pendingLate = false;
+
+    /* Selective Repeat reorder buffer, slot baseSlot holds the packet expectedSeqNum */
+    private final ByteBuffer reorder[];
+    private final boolean buffered[];
+    private int baseSlot = 0;
+
+    /* Forward error correction: packets delivered in order so far, and the payloads of those less 
+       than a block before or after the expected one, the packet counted n in slot n modulo twice 
+       the block length, with the parity of the block of the expected packet if it has come and 
+       the payload rebuilt from them */
+    private long delivered = 0;
+    private final ByteBuffer recent[];
+    private final long recentPacket[];
+    private final ParityBlock others;
+    private final ByteBuffer parity;
+    private long parityFirst = -1;
+    private final ByteBuffer rebuiltData;
+    private final packet rebuilt = new packet();
+
+    /* Output file, written only by the writer thread of the session */
+    private final FileSink sink;
+    private final ExecutorService writer;
+    private final BlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<ByteBuffer>(maxChunks);
+    private int chunks = 0;
+    private ByteBuffer chunk = null;
+
+    /* Where ACKs of the session are sent, the announcement and the sequence number of the SYN 
+       that opened it, which tells the run of the Sender apart, when its last packet came and its 
+       timer, kept by the Receiver */
+    InetSocketAddress replyAddress = null;
+    ByteBuffer announcement = null;
+    int synSeqNum = 0;
+    long lastPacketTime = 0;
+    boolean finished = false;
+    boolean ackQueued = false;
+    final TimerWheel.Timer ackTimer = new TimerWheel.Timer(1, this);
+    final TimerWheel.Timer timer = new TimerWheel.Timer(0, this);
+
+    /* Open the session writing the stripe of transfer starting at offset, in segments of at most segmentSize 
+     * bytes of the stripe itself or, if compressed, of the frames of a CompressionPipeline, with the 
+     * options agreed on in flags and, with parity, blocks of fecBlock packets */
+    public ReceiverSession(int id, ReceiverTransfer transfer, long offset, int segmentSize, int flags, int fecBlock,
+            SequenceSpace seqSpace, int windowSize, boolean selectiveRepeat, int ackEvery, ExecutorService writer,
+            ReceiverMetrics metrics) {
+        this.id = id;
+        this.transfer = transfer;
+        this.offset = offset;
+        this.fileName = transfer.getFileName();
+        this.segmentSize = segmentSize;
+        this.segmentPool = selectiveRepeat ? segmentPool(segmentSize) : null;
+        this.seqSpace = seqSpace;
+        this.windowSize = windowSize;
+        this.selectiveRepeat = selectiveRepeat;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.writer = writer;
+        this.metrics = metrics;
+        this.flags = flags;
+        this.inflater = (flags & CompressionPipeline.synFlag) != 0 ? new BlockInflater() : null;
+        this.resumed = transfer.resumePoint(offset);
+        this.sink = transfer.openStripe(offset);
+        this.start = sink.getPosition();
+        this.digest = (flags & SegmentChecksum.synFlag) != 0 ? new CRC32() : null;
+        sink.setDigest(digest);
+        this.reorder = selectiveRepeat ? new ByteBuffer[windowSize] : null;
+        this.buffered = selectiveRepeat ? new boolean[windowSize] : null;
+        this.fecBlock = (flags & ParityBlock.synFlag) != 0 ? fecBlock : 0;
+        this.recent = new ByteBuffer[2 * this.fecBlock];
+        this.recentPacket = new long[2 * this.fecBlock];
+        Arrays.fill(recentPacket, -1);
+        this.others = this.fecBlock > 0 ? new ParityBlock(segmentSize) : null;
+        this.parity = this.fecBlock > 0 ? ByteBuffer.allocate(ParityBlock.headerLength + segmentSize) : null;
+        this.rebuiltData = this.fecBlock > 0 ? ByteBuffer.allocate(segmentSize) : null;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public boolean isChecksummed() {
+        return digest != null;
+    }
+
+    /* Options agreed on with the Sender */
+    public int getFlags() {
+        return flags;
+    }
+
+    /* Bytes of the stripe a previous run already wrote, which the Sender skips */
+    public long getResumed() {
+        return resumed;
+    }
+
+    /* Pool of reorder buffers of the given size, keeping at most segmentPoolBytes of them */
+    private static synchronized BufferPool segmentPool(int size) {
+        BufferPool pool = segmentPools.get(size);
+        if (pool == null) {
+            pool = new BufferPool(size, Math.max(1, segmentPoolBytes / size));
+            segmentPools.put(size, pool);
+        }
+        return pool;
+    }
+
+    public ReceiverTransfer getTransfer() {
+        return transfer;
+    }
+
+    /* Offset of the stripe of the session in the file */
+    public long getOffset() {
+        return offset;
+    }
+
+    /* Sequence number of the last packet delivered in order */
+    public int getPreviousPacket() {
+        return previousPacket;
+    }
+
+    /* Handle a data packet, filling in ack and returning true if an ACK has to be sent at once. 
+     * In Go-Back-N a packet delivered in order leaves its cumulative ACK pending instead, until 
+     * ackEvery packets are pending */
+    public boolean receive(packet p, packet ack) throws Exception {
+        /* Damaged on the way, it will be sent again */
+        if (digest != null && !SegmentChecksum.verify(packetCrc, p)) {
+            metrics.corruptPacket();
+            return false;
+        }
+        return receiveChecked(p, ack);
+    }
+
+    /* Handle a data packet that passed its checksum, if any */
+    private boolean receiveChecked(packet p, packet ack) throws Exception {
+        /* Longer than the segment size agreed on in the SYN */
+        if (p.getLength() > segmentSize) {
+            metrics.packetDiscarded();
+            return false;
+        }
+        if (selectiveRepeat) {
+            return receiveSelective(p, ack);
+        }
+        if (p.getSeqNum() == expectedSeqNum) {
+            previousPacket = p.getSeqNum();
+            ack.set(0, previousPacket, noData);
+            deliver(p.getPayload());
+            inOrderReceived = true;
+            expectedSeqNum = seqSpace.wrap(expectedSeqNum + 1);
+            pendingPackets++;
+            pendingLate |= p == rebuilt;
+            deliverHeld();
+            return takePendingAck(ack, ackEvery);
+        }
+        if (fecBlock > 0 && hold(p)) {
+            return tryRebuild(ack);
+        }
+        metrics.packetDiscarded();
+        if (inOrderReceived) {
+            /* The duplicate ACK also acknowledges everything pending */
+            setPendingAck(ack);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasPendingAck() {
+        return pendingPackets > 0;
+    }
+
+    /* Fill in the cumulative ACK of the packets delivered since the last ACK, returning false if there is none */
+    public boolean takePendingAck(packet ack) throws Exception {
+        return takePendingAck(ack, 1);
+    }
+
+    private boolean takePendingAck(packet ack, int atLeast) throws Exception {
+        if (pendingPackets < atLeast) {
+            return false;
+        }
+        setPendingAck(ack);
+        return true;
+    }
+
+    /* Go-Back-N: acknowledge every packet delivered, marking the ACK if it comes late so the 
+     * Sender does not take its round trip time (Karn's rule), as it measures the wait for parity */
+    private void setPendingAck(packet ack) throws Exception {
+        ack.set(0, previousPacket, pendingLate ? lateMark.duplicate() : noData);
+        pendingPackets = 0;
+        pendingLate = false;
+    }
+
+    /* Selective Repeat: acknowledge a packet of the receive window or of the window before it,
+     * buffer it if it arrived out of order and deliver every packet that is now in order */
+    private boolean receiveSelective(packet p, packet ack) throws Exception {
+        int seqNum = p.getSeqNum();
+        long distance = seqSpace.distance(expectedSeqNum, seqNum);
+
+        /* Neither in the receive window nor in the one before it, so ignore the packet */
+        if (distance >= windowSize && distance < seqSpace.size() - windowSize) {
+            metrics.packetDiscarded();
+            return false;
+        }
+        ack.set(0, seqNum, p == rebuilt ? lateMark.duplicate() : noData);
+
+        /* Already delivered, only its ACK was lost */
+        if (distance >= windowSize) {
+            metrics.duplicatePacket();
+            return true;
+        }
+
+        if (distance == 0) {
+            deliver(p.getPayload());
+            advanceWindow();
+        } else {
+            int slot = (int) ((baseSlot + distance) % windowSize);
+            if (!buffered[slot]) {
+                if (reorder[slot] == null) {
+                    reorder[slot] = segmentPool.acquire();
+                }
+                reorder[slot].clear();
+                reorder[slot].put(p.getPayload());
+                reorder[slot].flip();
+                buffered[slot] = true;
+                metrics.packetBuffered();
+            } else {
+                metrics.duplicatePacket();
+            }
+        }
+
+        while (buffered[baseSlot]) {
+            buffered[baseSlot] = false;
+            deliver(reorder[baseSlot]);
+            advanceWindow();
+        }
+        return true;
+    }
+
+    /* Slide the Selective Repeat receive window by one packet */
+    private void advanceWindow() {
+        previousPacket = expectedSeqNum;
+        inOrderReceived = true;
+        expectedSeqNum = seqSpace.wrap(expectedSeqNum + 1);
+        baseSlot = (baseSlot + 1) % windowSize;
+    }
+
+    /* Deliver a payload in order, keeping a copy of it while a block may need it for a rebuild */
+    private void deliver(ByteBuffer data) throws InterruptedException {
+        metrics.packetDelivered(data.remaining());
+        if (fecBlock > 0) {
+            if (recentPayload(delivered) == null) {
+                keep(delivered, data);
+            }
+            delivered++;
+        }
+        write(data);
+    }
+
+    /* Copy the payload of the packet counted n into its slot, leaving data as it was */
+    private void keep(long n, ByteBuffer data) {
+        int slot = (int) (n % recent.length);
+        if (recent[slot] == null) {
+            recent[slot] = ByteBuffer.allocate(segmentSize);
+        }
+        recent[slot].clear();
+        recent[slot].put(data.duplicate());
+        recent[slot].flip();
+        recentPacket[slot] = n;
+    }
+
+    /* Payload kept of the packet counted n, null if there is none */
+    private ByteBuffer recentPayload(long n) {
+        int slot = (int) (n % recent.length);
+        return recentPacket[slot] == n ? recent[slot] : null;
+    }
+
+    /* Go-Back-N with parity: hold a packet that arrived less than a block ahead of its turn, 
+     * returning false if it is further ahead or behind */
+    private boolean hold(packet p) {
+        long distance = seqSpace.distance(expectedSeqNum, p.getSeqNum());
+        if (distance >= fecBlock) {
+            return false;
+        }
+        if (recentPayload(delivered + distance) != null) {
+            metrics.duplicatePacket();
+        } else {
+            keep(delivered + distance, p.getPayload());
+            metrics.packetBuffered();
+        }
+        return true;
+    }
+
+    /* Go-Back-N with parity: deliver the packets held ahead of their turn that are now in order */
+    private void deliverHeld() throws InterruptedException {
+        ByteBuffer held;
+        while (fecBlock > 0 && (held = recentPayload(delivered)) != null) {
+            previousPacket = expectedSeqNum;
+            deliver(held.duplicate());
+            expectedSeqNum = seqSpace.wrap(expectedSeqNum + 1);
+            pendingPackets++;
+            pendingLate = true;
+        }
+    }
+
+    /* Payload of the packet counted n, near the expected one, null if it has not come */
+    private ByteBuffer blockSegment(long n) {
+        if (n < delivered || !selectiveRepeat) {
+            return recentPayload(n);
+        }
+        int reorderSlot = (int) ((baseSlot + n - delivered) % windowSize);
+        return (n - delivered < windowSize && buffered[reorderSlot]) ? reorder[reorderSlot] : null;
+    }
+
+    /* Handle a parity packet, filling in ack and returning true if an ACK has to be sent at once. 
+     * Only the parity of the block of the expected packet is kept, the blocks before it are 
+     * complete and the Sender sends the parity of a block after all of its packets, so the block 
+     * starts less than a block length before the expected packet */
+    public boolean receiveParity(packet p, packet ack) throws Exception {
+        if (fecBlock == 0) {
+            return false;
+        }
+        if (digest != null && !SegmentChecksum.verify(packetCrc, p)) {
+            metrics.corruptPacket();
+            return false;
+        }
+        /* The block starts less than fecBlock packets before the expected one, or with it */
+        long distance = seqSpace.distance(expectedSeqNum, p.getSeqNum());
+        if (distance >= seqSpace.size() - fecBlock) {
+            distance -= seqSpace.size();
+        }
+        if (distance > 0 || p.getLength() < ParityBlock.headerLength || p.getLength() > parity.capacity()
+                || distance + p.getPayload().getInt(p.getPayload().position()) <= 0) {
+            return false;
+        }
+        parity.clear();
+        parity.put(p.getPayload());
+        parity.flip();
+        parityFirst = delivered + distance;
+        return tryRebuild(ack);
+    }
+
+    /* Rebuild the expected packet from the parity of its block, if it has come and every other 
+     * packet of the block is there, and receive it. It has no checksum to check, the parity and 
+     * the other packets had theirs. Returns true if an ACK has to be sent at once */
+    private boolean tryRebuild(packet ack) throws Exception {
+        if (parityFirst < 0) {
+            return false;
+        }
+        int count = parity.getInt(0);
+        if (count < 1 || count > fecBlock || parityFirst + count <= delivered) {
+            /* Of no use, or no longer, once the block is complete */
+            parityFirst = -1;
+            return false;
+        }
+        others.reset();
+        for (long n = parityFirst; n < parityFirst + count; n++) {
+            ByteBuffer segment = blockSegment(n);
+            if (segment != null) {
+                others.add(segment);
+            } else if (n != delivered) {
+                /* More than the expected packet is missing */
+                return false;
+            }
+        }
+        if (!others.recover(parity, rebuiltData)) {
+            return false;
+        }
+        parityFirst = -1;
+        metrics.packetRebuilt();
+        rebuilt.set(1, expectedSeqNum, rebuiltData);
+        rebuilt.setSession(id);
+        return receiveChecked(rebuilt, ack);
+    }
+
+    /* Copy the payload bytes into the current chunk, handing it to the writer once it is full */
+    private void write(ByteBuffer data) throws InterruptedException {
+        while (data.hasRemaining()) {
+            if (chunk == null) {
+                chunk = freeChunks.poll();
+                if (chunk == null && chunks < maxChunks) {
+                    chunk = chunkPool.acquire();
+                    chunks++;
+                } else if (chunk == null) {
+                    chunk = freeChunks.take();
+                }
+            }
+            if (data.remaining() <= chunk.remaining()) {
+                chunk.put(data);
+            } else {
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position() + chunk.remaining());
+                chunk.put(part);
+                data.position(part.position());
+            }
+            if (!chunk.hasRemaining()) {
+                submit();
+            }
+        }
+    }
+
+    /* Hand the current chunk to the writer thread */
+    private void submit() {
+        final ByteBuffer full = chunk;
+        chunk = null;
+        full.flip();
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    long before = sink.getPosition();
+                    if (inflater != null) {
+                        inflater.write(full, sink);
+                    } else {
+                        sink.write(full);
+                    }
+                    metrics.bytesWritten(sink.getPosition() - before);
+                } catch (Exception e) {
+                    System.err.println("ERROR: Unable to write to the file <" + fileName + ">");
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+                full.clear();
+                freeChunks.add(full);
+            }
+        });
+    }
+
+    /* Digest of what the session wrote, once it is closed, null without checksums */
+    public ByteBuffer getDigest() {
+        return digest == null ? null : SegmentChecksum.digest(sink.getPosition() - start, digest.getValue());
+    }
+
+    /* Compare what the session wrote, once it is closed, with the digest announced by the Sender, 
+     * returning true if they match or there is nothing to compare */
+    public boolean verify(ByteBuffer announced) {
+        if (digest == null || announced.remaining() < SegmentChecksum.digestLength) {
+            return true;
+        }
+        ByteBuffer written = getDigest();
+        return written.getLong(0) == announced.getLong(announced.position())
+                && written.getInt(8) == announced.getInt(announced.position() + 8);
+    }
+
+    /* Write out everything received and close the stripe, waiting until it is done */
+    public void close() throws Exception {
+        drain();
+        transfer.closeStripe(offset, sink);
+        release();
+    }
+
+    /* Write out everything received and hand the stripe back to the transfer unfinished, for the 
+     * session of a restarted Sender to carry on after it, waiting until it is done. Data of a 
+     * compressed block that did not arrive whole is dropped, the Sender sends the block again */
+    public void retire() throws Exception {
+        drain();
+        transfer.retireStripe(offset, sink);
+        release();
+    }
+
+    /* Have the writer write out everything received and close the sink, waiting until it is done */
+    private void drain() throws Exception {
+        if (chunk != null && chunk.position() > 0) {
+            submit();
+        }
+        Future<?> closed = writer.submit(new Runnable() {
+            public void run() {
+                try {
+                    sink.close();
+                    if (inflater != null) {
+                        inflater.close();
+                    }
+                } catch (Exception e) {
+                    System.err.println("ERROR: Unable to write to the file <" + fileName + ">");
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        });
+        closed.get();
+    }
+
+    private void release() {
+        /* Every chunk is back once the writer is done, hand them and the reorder buffers back to the pools */
+        for (ByteBuffer free = freeChunks.poll(); free != null; free = freeChunks.poll()) {
+            chunkPool.release(free);
+        }
+        chunks = 0;
+        if (reorder != null) {
+            for (int i = 0; i < reorder.length; i++) {
+                segmentPool.release(reorder[i]);
+                reorder[i] = null;
+            }
+        }
+    }
+}
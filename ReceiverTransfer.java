@@ -0,0 +1,198 @@
+/*
+ *
+ * File:   ReceiverTransfer.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Class Description:
+ *
+ *   The ReceiverTransfer class holds the output file of one transfer, which the Sender may
+ *   stripe over several streams. Each stream is a ReceiverSession of its own, and writes its
+ *   stripe through a FileSink at the offset of the stripe in the shared FileChannel, so the
+ *   stripes can be written at the same time and in any order.
+ *   Like a single FileSink, the transfer appends after whatever the file already contains,
+ *   reserves room for the announced size of the file, and cuts off whatever was reserved but
+ *   not written once the last stripe is closed.
+ *   A transfer is known by its source: the name, size and modification time of the file the
+ *   Sender reads and the number of streams, so a Sender that was restarted finds it again.
+ *   With a TransferCheckpoint the file is written from its start instead: a transfer of the same
+ *   source carries on from the checkpoint a previous run left, every stripe resuming after the 
+ *   bytes it counts, and any other transfer starts over in an emptied file. checkpoint() makes 
+ *   what the stripes have written durable and records it, from whichever thread calls it, and 
+ *   the checkpoint is removed once the last stripe is closed.
+ *   A stripe whose session is retired, because its Sender was restarted or went silent, is 
+ *   handed back unfinished: the transfer remembers how much of it was written, and the stripe 
+ *   is opened again after those bytes, with or without a checkpoint, for the next session of 
+ *   the stream. Stripes and streams are counted by their offset, so a stripe that is opened 
+ *   and closed again is counted once. A transfer whose stripes were all retired is abandoned, 
+ *   keeping its checkpoint.
+ *
+ */
+
+public class ReceiverTransfer {
+
+    /* Global Variables */
+    private final int id;
+    private final String source;
+    private final String fileName;
+    private final FileChannel channel;
+    private final long base;
+    private final int streams;
+    private final long size;
+    private final TransferCheckpoint checkpoint;
+    private final Map<Long, FileSink> stripes = new HashMap<Long, FileSink>();
+    private final Map<Long, Long> retired = new HashMap<Long, Long>();
+    private final Set<Long> stripesClosed = new HashSet<Long>();
+    private final Set<Long> streamsFinished = new HashSet<Long>();
+    private int stripesOpen = 0;
+    private boolean closed = false;
+    private long end;
+    private boolean preallocated = false;
+
+    /* Timer of the next checkpoint, kept by the Receiver */
+    final TimerWheel.Timer checkpointTimer = new TimerWheel.Timer(2, this);
+
+    /* Open the supplied file for a transfer of the source file of size bytes over the given number 
+     * of streams, creating it if needed, and resume it from checkpoint unless that is null */
+    public ReceiverTransfer(int id, String source, String fileName, int streams, long size,
+            TransferCheckpoint checkpoint) throws IOException {
+        this.id = id;
+        this.source = source;
+        this.fileName = fileName;
+        this.streams = streams;
+        this.size = size;
+        this.checkpoint = checkpoint;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (checkpoint == null) {
+            this.base = channel.size();
+        } else {
+            this.base = 0;
+            if (!checkpoint.load() || !checkpoint.matches(source, size, streams, channel.size())) {
+                checkpoint.reset(source, size, streams);
+                channel.truncate(0);
+            }
+        }
+        this.end = base;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /* Number of stripes a session is writing */
+    public synchronized int getOpenStripes() {
+        return stripesOpen;
+    }
+
+    /* Reserve room for a file of size bytes */
+    public void preallocate(long size) throws IOException {
+        if (size > 0 && base + size > channel.size()) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.write(last, base + size - 1);
+            preallocated = true;
+        }
+    }
+
+    /* Bytes of the stripe starting offset bytes into the file that a retired session or a previous 
+     * run already wrote */
+    public synchronized long resumePoint(long offset) {
+        Long written = retired.get(offset);
+        if (written != null) {
+            return written;
+        }
+        return checkpoint == null ? 0 : checkpoint.getDone(offset);
+    }
+
+    /* Sink for the stripe starting offset bytes into the file, positioned after its resume point */
+    public synchronized FileSink openStripe(long offset) {
+        FileSink sink = new FileSink(channel, base + offset + resumePoint(offset));
+        stripes.put(offset, sink);
+        stripesOpen++;
+        return sink;
+    }
+
+    /* Take back the stripe starting at offset unfinished, its sink having written all it was given, 
+     * to be opened again after what it wrote */
+    public synchronized void retireStripe(long offset, FileSink sink) {
+        retired.put(offset, sink.getPosition() - base - offset);
+        stripes.remove(offset);
+        stripesOpen--;
+    }
+
+    /* Force what every stripe has written so far to disk and record it in the checkpoint */
+    public synchronized void checkpoint() throws IOException {
+        if (checkpoint == null || closed) {
+            return;
+        }
+        for (Map.Entry<Long, Long> stripe : retired.entrySet()) {
+            checkpoint.setDone(stripe.getKey(), stripe.getValue());
+        }
+        for (Map.Entry<Long, FileSink> stripe : stripes.entrySet()) {
+            checkpoint.setDone(stripe.getKey(), stripe.getValue().getWrittenPosition() - base - stripe.getKey());
+        }
+        channel.force(false);
+        checkpoint.save();
+    }
+
+    /* Take note of the stripe starting at offset whose sink has been closed, closing the file after 
+     * the last one */
+    public synchronized void closeStripe(long offset, FileSink sink) throws IOException {
+        end = Math.max(end, sink.getPosition());
+        retired.put(offset, sink.getPosition() - base - offset);
+        stripes.remove(offset);
+        stripesOpen--;
+        stripesClosed.add(offset);
+        if (stripesClosed.size() == streams && !closed) {
+            if (preallocated && channel.size() > end) {
+                channel.truncate(end);
+            }
+            channel.close();
+            closed = true;
+            if (checkpoint != null) {
+                checkpoint.delete();
+            }
+        }
+    }
+
+    /* Close the file of a transfer whose stripes were all retired, keeping its checkpoint for a 
+     * later run. Without a checkpoint, room reserved after the furthest byte written is cut off */
+    public synchronized void abandon() throws IOException {
+        if (closed) {
+            return;
+        }
+        checkpoint();
+        if (checkpoint == null && preallocated) {
+            for (Map.Entry<Long, Long> stripe : retired.entrySet()) {
+                end = Math.max(end, base + stripe.getKey() + stripe.getValue());
+            }
+            channel.truncate(end);
+        }
+        channel.close();
+        closed = true;
+    }
+
+    /* Take note of the stream of the stripe starting at offset, whose EOT has come, true once all 
+     * of them have */
+    public boolean finishStream(long offset) {
+        return streamsFinished.add(offset) && streamsFinished.size() == streams;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ * File:   RttEstimator.java
+ *
+ */
+
+/*
+ * Class Description:
+ *
+ *   The RttEstimator class computes the retransmission timeout (RTO) of the Sender from the
+ *   round trip times measured on ACKs, following RFC 6298.
+ *   The first measurement R sets SRTT = R and RTTVAR = R/2, every later one updates
+ *   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R| and SRTT = 7/8 SRTT + 1/8 R, and then
+ *   RTO = SRTT + max(G, 4 RTTVAR), kept between a minimum and a maximum.
+ *   Each timeout doubles the RTO (exponential backoff) until the next measurement or until an
+ *   ACK acknowledges new data, whichever comes first.
+ *   The Sender only measures packets that were sent once (Karn's rule), since the ACK of a
+ *   retransmitted packet cannot be matched to one of its transmissions, and leaves out the
+ *   ACKs the Receiver marks as late because they waited for a parity packet.
+ *   All times are in nanoseconds, as returned by System.nanoTime.
+ *
+ */
+
+public class RttEstimator {
+
+    /* Global Constants */
+    private static final long clockGranularity = 1000000L;
+    private static final long maxRto = 60000000000L;
+
+    /* Global Variables */
+    private final long minRto;
+    private boolean measured = false;
+    private long smoothedRtt = 0;
+    private long rttVariation = 0;
+    private long rto;
+    private int backoffs = 0;
+
+    public RttEstimator(long initialRto, long minRto) {
+        this.minRto = minRto;
+        this.rto = Math.max(minRto, Math.min(initialRto, maxRto));
+    }
+
+    /* Forget the backoff once the receiver makes progress again */
+    public void resetBackoff() {
+        backoffs = 0;
+    }
+
+    /* Update the estimate with a round trip time measured on a packet sent only once */
+    public void sample(long rtt) {
+        if (!measured) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+            measured = true;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.max(minRto, Math.min(smoothedRtt + Math.max(clockGranularity, 4 * rttVariation), maxRto));
+        backoffs = 0;
+    }
+
+    /* Double the timeout after it expired */
+    public void backoff() {
+        if (backoffs < 32 && (rto << backoffs) < maxRto) {
+            backoffs++;
+        }
+    }
+
+    public long getRto() {
+        return Math.min(rto << backoffs, maxRto);
+    }
+
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public long getRttVariation() {
+        return rttVariation;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ * File:   SegmentChecksum.java
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/*
+ * Class Description:
+ *
+ *   The SegmentChecksum class protects data packets against corruption on the way. When the
+ *   Sender and the Receiver agree on it in the SYN, every data packet carries a CRC32 of its
+ *   session, its sequence number and its data in the last 4 bytes of its payload, and the
+ *   Receiver drops a packet whose checksum does not match, like a lost one, so it is recovered
+ *   by retransmission. CRC32 is computed with the CRC instructions of the processor by the JVM.
+ *   The same checksum over a whole stripe, with its length, is the digest of the stripe that the
+ *   EOT of the Sender carries and the Receiver compares with what it wrote to the file.
+ *   The CRC32 instances are passed in, every thread keeps its own.
+ *
+ */
+
+public class SegmentChecksum {
+
+    /* Global Constants */
+    public static final int length = 4;
+    public static final int digestLength = 12;
+    public static final int synFlag = 2;
+
+    /* Checksum of the session, the sequence number and the remaining bytes of data, leaving data as it was */
+    public static int compute(CRC32 crc, int session, int seqNum, ByteBuffer data) {
+        crc.reset();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(session >>> shift);
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            crc.update(seqNum >>> shift);
+        }
+        int position = data.position();
+        crc.update(data);
+        data.position(position);
+        return (int) crc.getValue();
+    }
+
+    /* Put the checksum of the remaining bytes of data after them, data needs room for it past its limit */
+    public static void append(CRC32 crc, int session, int seqNum, ByteBuffer data) {
+        int sum = compute(crc, session, seqNum, data);
+        int limit = data.limit();
+        data.limit(limit + length);
+        data.putInt(limit, sum);
+    }
+
+    /* Check the checksum at the end of the payload of p and take it off the payload, returning
+     * false if there is none or it does not match */
+    public static boolean verify(CRC32 crc, packet p) {
+        ByteBuffer data = p.getPayload();
+        if (data.remaining() < length) {
+            return false;
+        }
+        int limit = data.limit() - length;
+        int sum = data.getInt(limit);
+        data.limit(limit);
+        return compute(crc, p.getSession(), p.getSeqNum(), data) == sum;
+    }
+
+    /* Digest of a stripe: the number of bytes of it and their CRC32 */
+    public static ByteBuffer digest(long bytes, long crc) {
+        ByteBuffer digest = ByteBuffer.allocate(digestLength);
+        digest.putLong(0, bytes);
+        digest.putInt(8, (int) crc);
+        return digest;
+    }
+}
@@ -7,19 +7,41 @@
  */
 import java.io.*;
 import java.net.*;
-import java.io.PrintWriter;
-import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 
 /* 
  * Class Description:
  * 
  *   The Sender class the reads data from the specified file and sends it using 
- *   the Go-Back-N protocol to the receiver via the network emulator. 
- *   The window size is set to N=10. After all contents of the file have been transmitted
+ *   the Go-Back-N protocol, or Selective Repeat with -mode sr, to the receiver via the network 
+ *   emulator. 
+ *   Before any data it sends a SYN (packet type 3), resent on timeout, that announces the file, 
+ *   the stripe of the stream and the options it asks for. The SYN of the receiver answers with 
+ *   the segment size and options it agrees to and how many bytes of the stripe it already 
+ *   holds, and only the rest is sent. Every packet carries the session ID of its stream, so one 
+ *   receiver serves several senders at once. 
+ *   Segments are cut from a FileSegmentSource as they enter the window, and only the packets of 
+ *   the window are kept for retransmission. A congestion window decides how many of them are in 
+ *   flight, the timeout follows the round trip times measured by an RttEstimator, and -dupacks 
+ *   duplicate ACKs resend the oldest unacknowledged packet at once (fast retransmit). 
+ *   Each stream runs an event loop over a non-blocking DatagramChannel and a Selector: it sends 
+ *   while the window is open, reads every ACK that has arrived and otherwise sleeps until an ACK 
+ *   arrives or the earliest timer of its TimerWheel expires. 
+ *   After all contents of the file have been transmitted
  *   successfully to the receiver (and corresponding ACKs have been received),  
- *   the sender then sends an EOT packet to the receiver.  
- *   The sender closes its connection and exit only after it has received ACKs for 
- *   all  data packets it has sent and an EOT from the receiver. 
+ *   the sender then sends an EOT packet to the receiver, resent on timeout until the receiver 
+ *   answers it with an EOT. 
  *   
  *   If the sender has a packet to send, it first checks to see if the window is full, 
  *   that is, whether there are N outstanding, unacknowledged packets. 
@@ -30,11 +52,15 @@ import java.io.FileInputStream;
  *   When the sender receives an acknowledgement packet with sequence number n, the ACK will be taken 
  *   to be a cumulative acknowledgement, indicating that all packets with a sequence number up to 
  *   and including n have been correctly received at the receiver. 
- *   If a timeout occurs, the sender resends all packets that have been previously sent but 
- *   that have not yet been acknowledged. 
+ *   If a timeout occurs, the sender goes back and resends the packets that have been previously sent but 
+ *   that have not yet been acknowledged, as many at once as the window allows. 
  *   If an ACK is received but there are still additional transmitted but yet to be acknowledged 
  *   packets, the timer is restarted. If there are no outstanding packets, the timer is stopped. 
  *
+ *   In Selective Repeat mode (-mode sr) an ACK with sequence number n acknowledges packet n only. 
+ *   Every packet in the window has its own timer, the window slides over all packets that have 
+ *   been acknowledged in order, and on a timeout only the packet whose timer expired is resent. 
+ *
  */
 
 /*
@@ -50,213 +76,1036 @@ import java.io.FileInputStream;
  *      For example, the Receiver class can be run over the command line as follows:
  *      java Sender localhost 58110 58113 Test
  *
- * 2.   The Network Emulator and Receiver programm must be running before the Sender is run.
+ * 2.   The four arguments may be followed by these options:
+ *      -mode <gbn|sr>   Go-Back-N (default) or Selective Repeat, must match the Receiver
+ *      -window <n>      maximum window size in packets, default 10
+ *      -seqbits <b>     bits of sequence number carried in packets (1 to 32), default 5,
+ *                       must match the Receiver
+ *      -cc <on|off>     grow and shrink the window with the congestion window, default on.
+ *                       It starts at 10 packets, grows by one per ACK below the slow start
+ *                       threshold and by one per window above it, and halves on a fast
+ *                       retransmit and falls to one packet on a timeout
+ *      -rto <ms>        timeout used until the first round trip time is measured, default 1000
+ *      -minrto <ms>     lower bound of the computed timeout, default 10
+ *      -dupacks <n>     duplicate ACKs that trigger a fast retransmit, default 3, 0 turns it off
+ *      -session <id>    session ID of the transfer (0 to 65535), default chosen at random.
+ *                       A stream whose session ID the receiver already uses for another
+ *                       transfer carries on with one chosen at random. A sender restarted
+ *                       after it died resumes its transfer at a receiver that kept running,
+ *                       whatever its session ID
+ *      -segment <bytes> size of the data segments proposed to the receiver (1 to 65495),
+ *                       default 500. Datagrams are 12 bytes longer than the segments, so
+ *                       more than 500 needs a path that carries them, nEmulator does not
+ *      -compress <on|off>  deflate the file on the way, block by block, default off, with a
+ *                       CompressionPipeline that reads and deflates ahead of the window
+ *      -checksum <on|off>  checksum every data packet, ACK and the whole stripe with a
+ *                       SegmentChecksum, default on. The EOT carries the digest of the stripe
+ *                       and the stream warns if the receiver wrote another one
+ *      -fec <k>         send a parity packet after every k data packets, default 0 (none),
+ *                       k plus the window size may not exceed the sequence space. nEmulator
+ *                       drops parity packets, losses are then only recovered by retransmission.
+ *                       See ParityBlock
+ *      -rate <bits/s|auto>  pace the data packets of all streams together at most at this
+ *                       rate, or at the bandwidth estimated from the ACKs with auto,
+ *                       default 0 (not paced). See Pacer
+ *      -streams <n>     number of parallel streams the file is striped over, default 1. Each
+ *                       stream sends a stripe of whole segments on a thread of its own, with
+ *                       session ID and ACK port those of the transfer plus its number. The
+ *                       receiver has to send the ACKs of each stream to the port it sends
+ *                       from (Receiver -ackto sender)
+ *      -stats <s>       print a snapshot of the metrics every s seconds, default 0 (never).
+ *                       They are also published over JMX as GoBackN:type=Sender
+ *      -logs <on|off>   write seqnum.log and ack.log, default on
+ *
+ * 3.   The Network Emulator and Receiver programm must be running before the Sender is run.
  *
  */
 
-public class Sender {
+public class Sender implements Runnable {
 
     /* Global Constants */
-    private static final int timeOut = 100;
-    private static final Integer windowSize = 10;
-    private static final Integer packetSize = 500;
-    private static final Integer seqNumModulo = 32;
+    private static final int initialWindow = 10;
+    private static final int maxWindowSize = 1 << 20;
+    private static final int maxSynAttempts = 10;
+    private static final int maxEotAttempts = 8;
+    private static final int maxBurst = 64;
     private static final String seqLog = "seqnum.log";
     private static final String ackLog = "ack.log";
+    private static final int maxNameLength = 255;
+
+    /* Sequence number of every SYN of this run, chosen at random, so that the receiver tells a 
+       restarted Sender from a SYN that was resent */
+    private static final int incarnation = new Random().nextInt();
 
     /* Global Variables */
     private static String netEmuAddress = null;
     private static Integer netEmuDataPort = 0;
     private static Integer senderAckPort = 0;
     private static String fileName = null;
-    private static String fileData = null;
+    private static InetSocketAddress emulatorAddress = null;
+    private FileSegmentSource source = null;
+    private long segmentCount = 0;
+    private final long offset;
+    private final long length;
+    private static int transferId = 0;
+    private static int streamCount = 1;
+    private final int stream;
+    private int sessionId;
+    private final int ackPort;
+
+    /* Timeouts given with -rto and -minrto, every stream estimates its own from them */
+    private static long initialRto = 0;
+    private static long minRto = 0;
+
+    /* Segment size proposed with -segment, and the size the receiver agreed on for the stream */
+    private static int segmentSize = packet.maxDataLength;
+    private int agreedSize = 0;
+
+    /* Compression asked for with -compress, with the threads compressing for all streams, and the 
+       pipeline the segments of the stream are cut from if the receiver agreed to it */
+    private static boolean compress = false;
+    private static ExecutorService compressors = null;
+    private CompressionPipeline pipeline = null;
+
+    /* Checksums asked for with -checksum, whether the receiver agreed to them, the bytes of data 
+       a segment holds beside its checksum, and the digest of the stripe sent so far */
+    private static boolean checksums = true;
+    private boolean checksummed = false;
+    private int dataSize = 0;
+    private final CRC32 packetCrc = new CRC32();
+    private final CRC32 stripeDigest = new CRC32();
+    private long stripeBytes = 0;
+
+    /* Block length given with -fec, 0 for none, and if the receiver agreed to it the parity of the 
+       current block, with the sequence number of its first packet and its packet once it is due */
+    private static int fecBlock = 0;
+    private ParityBlock parity = null;
+    private int parityFirst = 0;
+    private final packet parityPacket = new packet();
+    private boolean parityDue = false;
+    private TimerWheel.Timer parityTimer = null;
 
-    private static int sendBase = 0;
-    private static int seqNumber = 0;
-    private static int nextSeqNum = 0;
-    private static int packetAckNum = 0;
-    private static int lastAck = -1;
+    /* Rate given with -rate in bits per second, 0 for none, or whether it is auto, and the pacer 
+       of the stream with the time until which it holds back the next packet, 0 if it does not */
+    private static long pacingRate = 0;
+    private static boolean autoPacing = false;
+    private Pacer pacer = null;
+    private long pacedUntil = 0;
+
+    /* Maximum window and sequence number space, set with -window and -seqbits */
+    private static int windowSize = 10;
+    private static SequenceSpace seqSpace = null;
+
+    /* Congestion window in packets, with the slow start threshold */
+    private static boolean congestionControl = true;
+    private double congestionWindow = 0;
+    private double slowStartThreshold = 0;
+
+    /* Packet counters are 32-bit sequence numbers that may wrap around. sendNext is the next 
+       packet to transmit, it only falls behind nextSeqNum while going back after a timeout */
+    private int sendBase = 0;
+    private int nextSeqNum = 0;
+    private int sendNext = 0;
+    private long nextSegment = 0;
+
+    /* Packet already cut for nextSeqNum that the pacer or the socket did not let go yet, it is 
+       sent as it is, cutting it again would read the segment and update the digest twice */
+    private packet heldPacket = null;
     
-    private static long startTime = 0;
-    private static boolean timerFlag = false;
+    /* Retransmission timers, driven by the computed timeout: the single timer of the oldest 
+       unacknowledged packet in Go-Back-N, one per window slot in Selective Repeat */
+    private TimerWheel timers = null;
+    private TimerWheel.Timer windowTimer = null;
+    private TimerWheel.Timer packetTimers[] = null;
+    private RttEstimator rtt = null;
+
+    /* Duplicate ACKs received since the window last moved */
+    private static int dupAckThreshold = 3;
+    private int dupAckCount = 0;
+
+    /* Selective Repeat state, kept per window slot like the packets themselves */
+    private static boolean selectiveRepeat = false;
+    private boolean acked[] = null;
+
+    /* Slots whose packet timed out but could not be resent yet, its timer then only stands for the resend */
+    private boolean resendDue[] = null;
+
+    /* Send time of every packet in the window and whether it was ever retransmitted */
+    private long sentTime[] = null;
+    private boolean retransmitted[] = null;
     
-    private static DatagramSocket senderSocket = null;
+    /* Non-blocking channel for data and ACKs, with the selector of the event loop */
+    private DatagramChannel senderChannel = null;
+    private Selector selector = null;
+    private SelectionKey channelKey = null;
+    private boolean writeBlocked = false;
 
-    private static packet packets[];
+    /* Logs of the sequence numbers sent and the ACKs received, not written with -logs off */
+    private static boolean logPackets = true;
+    private static AsyncLog seqNumLog = null;
+    private static AsyncLog ackNumLog = null;
 
-    /* Read the data from the supplied file and return a string containing files contents */
-    public static String readFromFile(String fName) throws Exception {
-        String content = null;
-        File file = new File(fName);
-        FileReader reader = null;
+    /* Metrics of all streams, with the round trip times they measured from sending a packet to 
+       receiving its ACK, kept over every run in the same JVM */
+    private static final LatencyHistogram ackLatency = new LatencyHistogram();
+    private static SenderMetrics metrics = null;
+    private static int statsInterval = 0;
+
+    /* Packets of the current window, the packet with sequence number i is kept in slot i & slotMask, 
+       there is a power of two number of slots of at least windowSize. 
+       Slots and their payload buffers are allocated once and reused as the window advances */
+    private int slotMask = 0;
+    private packet window[] = null;
+    private ByteBuffer windowData[] = null;
+
+    /* Datagram buffers reused for every packet sent and every ACK received, the send buffer also 
+       takes a parity packet, a little longer than the segments */
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(packet.headerLength + segmentSize
+            + ParityBlock.headerLength + SegmentChecksum.length);
+    private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1024);
+    private packet receivedPacket = new packet();
+
+    /* Sequence numbers and arrival times of the ACKs read in one pass */
+    private final int ackNums[] = new int[maxBurst];
+    private final long ackTimes[] = new long[maxBurst];
+    private final boolean ackLate[] = new boolean[maxBurst];
+
+    /* Open length bytes of the supplied file from offset on as a stream of segments of size bytes */
+    public static FileSegmentSource openSource(String fName, long offset, long length, int size) {
+        FileSegmentSource fileSource = null;
         try {
-            reader = new FileReader(file);
-            char[] chars = new char[(int) file.length()];
-            reader.read(chars);
-            content = new String(chars);
-            reader.close();
+            fileSource = new FileSegmentSource(fName, size, offset, length);
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to read the supplied file <" + fName + ">");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return fileSource;
+    }
+
+    /* Compress length bytes of the supplied file from offset on, waking up the event loop of the 
+     * stream whenever a block is ready */
+    public CompressionPipeline openPipeline(long offset, long length) {
+        CompressionPipeline blocks = null;
+        try {
+            blocks = new CompressionPipeline(fileName, offset, length, compressors, new Runnable() {
+                public void run() {
+                    selector.wakeup();
+                }
+            });
         } catch (IOException e) {
             System.err.println("ERROR: Unable to read the supplied file <" + fileName + ">");
             e.printStackTrace();
             System.exit(1);
-        } finally {
-            if (reader != null) {
-                reader.close();
-            }
         }
-        return content;
+        return blocks;
     }
 
-    /* Write the data string to the file supplied by fileName, with two options:
-     * Option 0: write to file without End-Of-Line charachter 
-     * Option 1: write to file with End-Of-Line charachter 
-     */
-    public static void writeToFile(String fileName, String data, int option) throws Exception {
+    /* Whether the segment with the given index can be cut now */
+    public boolean segmentReady(long index) {
+        return pipeline != null ? pipeline.segmentReady() : index < segmentCount;
+    }
 
+    /* Whether the segment with the given index is past the end of the stripe */
+    public boolean segmentsDone(long index) {
+        return pipeline != null ? pipeline.isFinished() : index == segmentCount;
+    }
+
+    /* Open the log file supplied by fileName, its records are written by a background thread */
+    public static AsyncLog openLog(String fileName) {
+        AsyncLog log = null;
         try {
-            PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
-            // write to file without End-Of-Line charachter
-            if (option == 0) {
-                out.print(data);
-            } // write to file with End-Of-Line charachter 
-            else {
-                out.println(data);
-            }
-            out.close();
+            log = new AsyncLog(fileName);
         } catch (Exception e) {
             System.err.println("ERROR: Unable to write to the file <" + fileName + ">");
             e.printStackTrace();
             System.exit(1);
         }
+        return log;
     }
 
-    /* Convert a data string into a series of UDP packets, assigning a sequence number to each packet */
-    public static packet[] packetGenerator(String content) throws Exception {
-        /* Calculate the total number of packets to be transmitted */
-        int numPackets = (int) Math.ceil((double) content.length() / (double) packetSize);
+    /* Allocate the window slots once the window size is known */
+    public void createWindow() {
+        int slots = 1;
+        while (slots < windowSize) {
+            slots <<= 1;
+        }
+        slotMask = slots - 1;
+        window = new packet[slots];
+        windowData = new ByteBuffer[slots];
+        acked = new boolean[slots];
+        resendDue = new boolean[slots];
+        sentTime = new long[slots];
+        retransmitted = new boolean[slots];
+        packetTimers = new TimerWheel.Timer[slots];
+        for (int i = 0; i < slots; i++) {
+            packetTimers[i] = new TimerWheel.Timer(i, this);
+        }
+        windowTimer = new TimerWheel.Timer(-1, this);
+        parityTimer = new TimerWheel.Timer(-2, this);
 
-        packet packets[] = new packet[numPackets];
-        packet temp_packet;
+        congestionWindow = Math.min(initialWindow, windowSize);
+        slowStartThreshold = windowSize;
+    }
 
-        int i = 0;
-        while (i < numPackets - 1) {
-            temp_packet
-                    = packet.createPacket(i % seqNumModulo, content.substring(i * packetSize, (i + 1) * packetSize));
-            packets[i] = temp_packet;
-            i++;
+    /* Number of packets that may currently be in flight */
+    public int currentWindow() {
+        if (!congestionControl) {
+            return windowSize;
         }
+        return (int) Math.max(1, Math.min(congestionWindow, windowSize));
+    }
 
-        /* Last packet containing the last 500 bytes or less of the file */
-        temp_packet
-                = packet.createPacket(i % seqNumModulo, content.substring(i * packetSize, content.length()));
-        packets[i] = temp_packet;
+    /* Grow the congestion window for newly acknowledged packets, by one packet per packet 
+     * below the slow start threshold and by about one packet per window above it */
+    public void windowAcked(int count) {
+        for (int i = 0; i < count; i++) {
+            if (congestionWindow < slowStartThreshold) {
+                congestionWindow += 1;
+            } else {
+                congestionWindow += 1 / congestionWindow;
+            }
+        }
+        congestionWindow = Math.min(congestionWindow, windowSize);
+    }
+
+    /* Shrink the congestion window after a timeout */
+    public void windowTimedOut() {
+        slowStartThreshold = Math.max((nextSeqNum - sendBase) / 2.0, 2);
+        congestionWindow = 1;
+    }
 
-        return packets;
+    /* Halve the congestion window after a fast retransmit */
+    public void windowHalved() {
+        slowStartThreshold = Math.max((nextSeqNum - sendBase) / 2.0, 2);
+        congestionWindow = slowStartThreshold;
     }
 
-    /* Send UDP packet to the specified hostAddress and port number via the given datagramsocket */
-    public static void packetSend(packet p, String hostAddress, Integer port, DatagramSocket socket) throws Exception {
-        byte[] sendData = p.getUDPdata();
-        InetAddress IPAddress = null;
-        /* Extract the IP address of the Network Emulator from hostAddress */
+    /* Cut the segment with the given index from the file and store its packet in the window,
+     * assigning it the sequence number seq. The last packet contains the last segment or less of the file */
+    public packet packetGenerator(int seq, long index) throws Exception {
+        int slot = seq & slotMask;
+        if (window[slot] == null) {
+            window[slot] = new packet();
+            windowData[slot] = ByteBuffer.allocate(agreedSize);
+        }
+        ByteBuffer data = windowData[slot];
         try {
-            IPAddress = InetAddress.getByName(netEmuAddress);
-        } catch (Exception e) {
-            System.err.println("ERROR: Unable to obtain the IP address of the Network Emulator.");
+            if (pipeline != null) {
+                pipeline.readSegment(data, dataSize);
+            } else {
+                source.readSegment(index, data);
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to read the supplied file <" + fileName + ">");
             e.printStackTrace();
             System.exit(1);
         }
+        if (checksummed) {
+            /* The pipeline keeps the digest of the raw stripe itself */
+            if (pipeline == null) {
+                int start = data.position();
+                stripeBytes += data.remaining();
+                stripeDigest.update(data);
+                data.position(start);
+            }
+            SegmentChecksum.append(packetCrc, sessionId, seqSpace.wrap(seq), data);
+        }
+        retransmitted[slot] = false;
+        resendDue[slot] = false;
+        return window[slot].set(1, seqSpace.wrap(seq), data);
+    }
 
-        DatagramPacket sendPacket
-                = new DatagramPacket(sendData, sendData.length, IPAddress, port);
+    /* Send UDP packet to the specified address via the given datagramchannel.
+     * Returns false, without sending, if the socket buffer has no room for the datagram */
+    public boolean packetSend(packet p, InetSocketAddress address, DatagramChannel channel) throws Exception {
+        /* Serialize the packet straight into the shared send buffer */
+        p.setSession(sessionId);
+        sendBuffer.clear();
+        p.encode(sendBuffer);
+        sendBuffer.flip();
 
+        boolean sent = false;
         try {
-            socket.send(sendPacket);
+            sent = channel.send(sendBuffer, address) > 0;
         } catch (Exception e) {
             System.err.println("ERROR: Unable to send the UDP Datagram.");
             e.printStackTrace();
             System.exit(1);
         }
+        writeBlocked = !sent;
+        return sent;
     }
 
-    public static void receivePacket() throws Exception {
-        byte[] receiveData = new byte[1024];
-        int newSendBase = 0;
+    /* Send the packet of the window with sequence number seq, noting when. Returns false, without 
+     * sending, if the pacer holds it back, until pacedUntil, or the socket buffer has no room for it */
+    public boolean dataSend(int seq) throws Exception {
+        packet p = window[seq & slotMask];
+        int bytes = packet.headerLength + p.getLength();
+        long currentTime = System.nanoTime();
+        if (pacedBack(currentTime, bytes) || !packetSend(p, emulatorAddress, senderChannel)) {
+            return false;
+        }
+        sentTime[seq & slotMask] = currentTime;
+        if (pacer != null) {
+            pacer.sent(seq, currentTime, bytes);
+        }
+        return true;
+    }
+
+    /* Whether the pacer holds back a datagram of the given bytes at currentTime, setting pacedUntil if so */
+    public boolean pacedBack(long currentTime, int bytes) {
+        if (pacer == null) {
+            return false;
+        }
+        long delay = pacer.delay(currentTime, bytes);
+        if (delay > 0) {
+            pacedUntil = currentTime + delay;
+            return true;
+        }
+        return false;
+    }
+
+    /* Make the parity of the packets added since the last one due, checksummed like them */
+    public void closeBlock() throws Exception {
+        ByteBuffer payload = parity.payload();
+        if (checksummed) {
+            SegmentChecksum.append(packetCrc, sessionId, seqSpace.wrap(parityFirst), payload);
+        }
+        parityPacket.set(4, seqSpace.wrap(parityFirst), payload);
+        parityDue = true;
+        timers.cancel(parityTimer);
+    }
+
+    /* Send the parity packet that is due, if any. Returns false if the pacer held it back or the 
+     * socket buffer had no room for it */
+    public boolean paritySend() throws Exception {
+        if (!parityDue) {
+            return true;
+        }
+        int bytes = packet.headerLength + parityPacket.getLength();
+        long currentTime = System.nanoTime();
+        if (pacedBack(currentTime, bytes) || !packetSend(parityPacket, emulatorAddress, senderChannel)) {
+            return false;
+        }
+        if (pacer != null) {
+            pacer.sent(currentTime, bytes);
+        }
+        metrics.paritySent(parityPacket.getLength());
+        parityDue = false;
+        parity.reset();
+        return true;
+    }
+
+    /* Send a control packet, waiting for room in the socket buffer if there is none */
+    public void packetSendWaiting(packet p) throws Exception {
+        while (!packetSend(p, emulatorAddress, senderChannel)) {
+            channelKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            selector.select(10);
+            selector.selectedKeys().clear();
+        }
+        channelKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    /* Time in milliseconds to wait for an ACK before the oldest running timer expires, 0 if none is running */
+    public long receiveTimeout(long currentTime) {
+        long deadline = timers.nextDeadline();
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, (deadline - currentTime + 999999) / 1000000);
+    }
+
+    /* Wait for ACKs until the pacer lets the next packet go or the oldest timer expires, sleeping 
+     * through waits too short for the selector and only picking up what arrived meanwhile */
+    public void waitPaced(long currentTime) throws Exception {
+        long wait = Math.min(pacedUntil, timers.nextDeadline()) - currentTime;
+        if (wait < 1000000L) {
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            selector.selectNow();
+        } else {
+            selector.select(wait / 1000000);
+        }
+    }
+
+    /* Decode the datagram in the receive buffer into receivedPacket, returning false if it is no valid packet */
+    public boolean parseReceived() {
+        receiveBuffer.flip();
         try {
-            DatagramPacket receivePacket
-                    = new DatagramPacket(receiveData, receiveData.length);
+            packet.parseUDPdata(receiveBuffer, receivedPacket);
+        } catch (Exception e) {
+            return false;
+        }
+        return true;
+    }
 
-            senderSocket.receive(receivePacket);
-            packet receivedPacket = packet.parseUDPdata(receivePacket.getData());
+    /* Read every ACK that has arrived, without waiting for more, and handle them in batches of 
+     * up to maxBurst ACKs */
+    public void receiveAcks() throws Exception {
+        try {
+            int count = 0;
+            while (true) {
+                receiveBuffer.clear();
+                if (senderChannel.receive(receiveBuffer) == null) {
+                    break;
+                }
+                long receiveTime = System.nanoTime();
 
-            /* Ignore any Socket Timeout Exception as timeouts are handeled elsewhere */
-            /* Set the ACK number to the sequence number of the received packet*/
-            packetAckNum = receivedPacket.getSeqNum();
+                /* Decode the ACK in place over the receive buffer. Only ACKs (packet type 0) of this 
+                   session are expected, a late SYN reply or a damaged datagram or ACK is ignored */
+                if (parseReceived() && receivedPacket.getType() == 0 && receivedPacket.getSession() == sessionId
+                        && (!checksummed || SegmentChecksum.verify(packetCrc, receivedPacket))) {
+                    ackNums[count] = receivedPacket.getSeqNum();
+                    ackTimes[count] = receiveTime;
+                    ackLate[count] = receivedPacket.getLength() > 0;
+                    count++;
+                    if (count == maxBurst) {
+                        acksReceived(count);
+                        count = 0;
+                    }
+                }
+            }
+            acksReceived(count);
+        } catch (Exception e) {
+            System.err.println("ERROR: Something went wrong while receiving a packet");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
 
-            if (packetAckNum != lastAck) {
-                if (packetAckNum < sendBase) {
-                    //newSendBase = seqNumModulo - sendBase;
-                    newSendBase = sendBase % seqNumModulo;
-                    sendBase = (sendBase + newSendBase + packetAckNum + 1);
-                } else {
-                    sendBase = (packetAckNum + 1);
+    /* Handle a batch of ACKs in the order they arrived. In Go-Back-N every ACK before the one that 
+     * moves the window furthest is covered by it, those are only logged and counted, the window 
+     * and its timer move once, and the ACKs after it are handled as duplicates as usual */
+    public void acksReceived(int count) throws Exception {
+        int first = 0;
+        if (!selectiveRepeat) {
+            long furthest = -1;
+            int base = seqSpace.wrap(sendBase);
+            for (int i = 0; i < count; i++) {
+                long distance = seqSpace.distance(base, ackNums[i]);
+                if (distance < nextSeqNum - sendBase && distance > furthest) {
+                    furthest = distance;
+                    first = i;
                 }
-                lastAck = packetAckNum;
             }
-            /* Stop the timer */
-            if ((sendBase % seqNumModulo) == (nextSeqNum % seqNumModulo)) {
-                timerFlag = false;
-                startTime = 0;
-            } /* Initiate the timer using system timer */ else {
-                timerFlag = true;
-                startTime = System.currentTimeMillis();
+            for (int i = 0; i < first; i++) {
+                metrics.ackReceived();
+                if (logPackets) {
+                    ackNumLog.log(ackNums[i]);
+                }
             }
-            /* Write ACK numbers into the log file */
+        }
+        for (int i = first; i < count; i++) {
+            ackReceived(ackNums[i], ackTimes[i], ackLate[i]);
+        }
+    }
 
-            writeToFile(ackLog, Integer.toString(packetAckNum), 1);
-        } catch (SocketTimeoutException e) {
-        } catch (IOException e) {
-            System.err.println("ERROR: Unable to write to " + ackLog);
-            e.printStackTrace();
+    public void ackReceived(int packetAckNum, long receiveTime, boolean late) throws Exception {
+        metrics.ackReceived();
+
+        /* Map the ACK onto the outstanding packet it acknowledges, ACKs only carry the low 
+           bits of the sequence number. ACKs for packets outside the window are ignored */
+        long distance = seqSpace.distance(seqSpace.wrap(sendBase), packetAckNum);
+        boolean inWindow = distance < nextSeqNum - sendBase;
+        int oldSendBase = sendBase;
+
+        int ackedSlot = (sendBase + (int) distance) & slotMask;
+        boolean newlyAcked = inWindow && !(selectiveRepeat && acked[ackedSlot]);
+
+        /* Measure the round trip time on the acknowledged packet, unless it was retransmitted or 
+           the receiver marked the ACK as late, when the packet was rebuilt or held behind a gap */
+        if (newlyAcked && !retransmitted[ackedSlot] && !late) {
+            rtt.sample(receiveTime - sentTime[ackedSlot]);
+            metrics.rttSample(receiveTime - sentTime[ackedSlot]);
+        }
+
+        if (selectiveRepeat) {
+            /* Mark the acknowledged packet and slide the window over all packets acknowledged in order */
+            if (inWindow) {
+                acked[ackedSlot] = true;
+                timers.cancel(packetTimers[ackedSlot]);
+            }
+            while (sendBase != nextSeqNum && acked[sendBase & slotMask]) {
+                acked[sendBase & slotMask] = false;
+                sendBase++;
+            }
+        } else if (inWindow) {
+            sendBase = sendBase + (int) distance + 1;
+        }
+        windowAcked(sendBase - oldSendBase);
+        if (pacer != null && newlyAcked) {
+            paceAcked(oldSendBase, ackedSlot, receiveTime);
+        }
+        long bytesAcked = 0;
+        for (int i = oldSendBase; i != sendBase; i++) {
+            bytesAcked += window[i & slotMask].getLength();
+        }
+        metrics.bytesAcked(bytesAcked);
+
+        /* Count ACKs that leave the window where it is, and resend the oldest packet 
+           once as soon as there are dupAckThreshold of them */
+        if (sendBase != oldSendBase) {
+            dupAckCount = 0;
+        } else if (sendBase != nextSeqNum
+                && (selectiveRepeat ? newlyAcked : distance == seqSpace.size() - 1)) {
+            dupAckCount++;
+            metrics.duplicateAck();
+            /* With parity the receiver may still rebuild the packet once the rest of its block is in */
+            if (dupAckCount == (parity != null && dupAckThreshold > 0 ? dupAckThreshold + fecBlock : dupAckThreshold)) {
+                fastRetransmit();
+            }
+        }
+
+        /* Going back never resends packets that are already acknowledged */
+        if (SequenceSpace.before(sendNext, sendBase)) {
+            sendNext = sendBase;
+        }
+
+        if (sendBase != oldSendBase) {
+            rtt.resetBackoff();
+        }
+        /* Stop the timer */
+        if (sendBase == nextSeqNum) {
+            timers.cancel(windowTimer);
+        } /* Restart the timer when the window moved */ else if (sendBase != oldSendBase && !selectiveRepeat) {
+            timers.schedule(windowTimer, receiveTime + rtt.getRto());
+        }
+        /* Write ACK numbers into the log file */
+        if (logPackets) {
+            ackNumLog.log(packetAckNum);
+        }
+    }
+
+    /* Tell the pacer about the packets an ACK received at receiveTime acknowledged: the one in 
+     * ackedSlot in Selective Repeat, all from oldSendBase on in Go-Back-N. Bandwidth samples are 
+     * kept for about ten round trips */
+    public void paceAcked(int oldSendBase, int ackedSlot, long receiveTime) {
+        long period = 10 * Math.max(rtt.getSmoothedRtt(), minRto);
+        if (selectiveRepeat) {
+            pacer.acked(ackedSlot, receiveTime, packet.headerLength + window[ackedSlot].getLength(), period);
+            return;
+        }
+        for (int i = oldSendBase; i != sendBase; i++) {
+            pacer.acked(i, receiveTime, packet.headerLength + window[i & slotMask].getLength(), period);
+        }
+    }
+
+    /* Announce the size of the file, the stripe of the stream, the proposed segment size, whether 
+     * to compress, checksum and add parity, with the block length, and the modification time of 
+     * the file, the stream and the name of the file, by which the receiver finds the transfer 
+     * again after a restart, in a SYN and wait for the SYN of the receiver, resending it on 
+     * timeout. The round trip of a SYN that was sent once is the first RTT measurement */
+    public void handshake() throws Exception {
+        File file = new File(fileName);
+        byte name[] = file.getName().getBytes(StandardCharsets.UTF_8);
+        int nameLength = Math.min(name.length, maxNameLength);
+        ByteBuffer announcement = ByteBuffer.allocate(48 + nameLength);
+        announcement.putLong(0, source.getFileSize());
+        announcement.putLong(8, source.getRangeStart());
+        announcement.putInt(16, transferId);
+        announcement.putInt(20, streamCount);
+        announcement.putInt(24, segmentSize);
+        announcement.putInt(28, (compress ? CompressionPipeline.synFlag : 0) | (checksums ? SegmentChecksum.synFlag : 0)
+                | (fecBlock > 0 ? ParityBlock.synFlag : 0));
+        announcement.putInt(32, fecBlock);
+        announcement.putLong(36, file.lastModified());
+        announcement.putInt(44, stream);
+        announcement.position(48);
+        announcement.put(name, 0, nameLength);
+        announcement.flip();
+        packet syn = packet.createSYN(incarnation, announcement);
+
+        for (int attempt = 0; attempt < maxSynAttempts; attempt++) {
+            long synTime = System.nanoTime();
+            long deadline = synTime + rtt.getRto();
+            packetSendWaiting(syn);
+            while (System.nanoTime() < deadline) {
+                selector.select(Math.max(1, (deadline - System.nanoTime()) / 1000000));
+                selector.selectedKeys().clear();
+                receiveBuffer.clear();
+                while (senderChannel.receive(receiveBuffer) != null) {
+                    if (parseReceived() && receivedPacket.getType() == 3 && receivedPacket.getSession() == sessionId) {
+                        if (attempt == 0) {
+                            rtt.sample(System.nanoTime() - synTime);
+                        }
+                        if (sessionTaken(receivedPacket.getPayload())) {
+                            /* Send the SYN again at once, with the new session ID */
+                            deadline = 0;
+                            break;
+                        }
+                        synAnswered(receivedPacket.getPayload());
+                        return;
+                    }
+                    receiveBuffer.clear();
+                }
+            }
+            if (deadline != 0) {
+                rtt.backoff();
+            }
+        }
+        System.err.println("ERROR: No answer from the receiver after " + maxSynAttempts + " attempts.");
+        System.exit(1);
+    }
+
+    /* Whether the receiver answered the SYN with a segment size of 0, telling that the session ID is 
+     * in use by another transfer, in which case the stream takes another one at random */
+    public boolean sessionTaken(ByteBuffer answer) {
+        if (answer.remaining() < 4 || answer.getInt(answer.position()) != 0) {
+            return false;
+        }
+        int taken = sessionId;
+        while (sessionId == taken) {
+            sessionId = new Random().nextInt(packet.maxSession + 1);
+        }
+        System.out.println("Stream " + stream + " takes session " + sessionId + ", session " + taken + " is in use");
+        return true;
+    }
+
+    /* The EOT of the stream, telling in microseconds the timeout after which it is resent, for the 
+     * receiver to know how long to remember the stream, then carrying the digest of the stripe 
+     * with checksums */
+    public packet endOfTransmission(long timeout) throws Exception {
+        ByteBuffer payload = ByteBuffer.allocate(4 + SegmentChecksum.digestLength);
+        payload.putInt((int) Math.min(Integer.MAX_VALUE, timeout / 1000));
+        if (checksummed) {
+            payload.put(pipeline != null ? SegmentChecksum.digest(pipeline.getLength(), pipeline.getDigest())
+                    : SegmentChecksum.digest(stripeBytes, stripeDigest.getValue()));
+        }
+        payload.flip();
+        return packet.createEOT(seqSpace.wrap(nextSeqNum), payload);
+    }
+
+    /* Send the EOT and wait for the EOT of the receiver that answers it, resending it on timeout. 
+     * Every packet has been acknowledged by then, so a receiver that does not answer after 
+     * maxEotAttempts only costs a warning. With checksums the answer carries the digest of what 
+     * the receiver wrote, which has to be the one of the stripe */
+    public void closeHandshake() throws Exception {
+        channelKey.interestOps(SelectionKey.OP_READ);
+        for (int attempt = 0; attempt < maxEotAttempts; attempt++) {
+            long timeout = rtt.getRto();
+            long deadline = System.nanoTime() + timeout;
+            packet eot = endOfTransmission(timeout);
+            packetSendWaiting(eot);
+            while (System.nanoTime() < deadline) {
+                selector.select(Math.max(1, (deadline - System.nanoTime()) / 1000000));
+                selector.selectedKeys().clear();
+                receiveBuffer.clear();
+                while (senderChannel.receive(receiveBuffer) != null) {
+                    if (parseReceived() && receivedPacket.getType() == 2 && receivedPacket.getSession() == sessionId) {
+                        eotAnswered(eot.getPayload(), receivedPacket.getPayload());
+                        return;
+                    }
+                    receiveBuffer.clear();
+                }
+            }
+            rtt.backoff();
+        }
+        System.err.println("WARNING: Stream " + stream + " got no answer to its EOT after " + maxEotAttempts + " attempts.");
+    }
+
+    /* Compare the digest the receiver answered the EOT with, if any, with the one sent in it */
+    public void eotAnswered(ByteBuffer sent, ByteBuffer answer) {
+        if (sent.remaining() < 4 + SegmentChecksum.digestLength || answer.remaining() < SegmentChecksum.digestLength) {
+            return;
+        }
+        long sentBytes = sent.getLong(sent.position() + 4);
+        int sentCrc = sent.getInt(sent.position() + 12);
+        long writtenBytes = answer.getLong(answer.position());
+        int writtenCrc = answer.getInt(answer.position() + 8);
+        if (sentBytes != writtenBytes || sentCrc != writtenCrc) {
+            System.err.println(String.format("WARNING: Stream %d sent %d bytes with CRC32 %08x, the receiver wrote %d bytes with CRC32 %08x",
+                    stream, sentBytes, sentCrc, writtenBytes, writtenCrc));
+        }
+    }
+
+    /* Take the segment size the receiver answered with, the number of bytes of the stripe it 
+     * already has and whether it agreed to compression, cutting the rest of the stripe again if 
+     * any of them changes the segments. A receiver that does not answer with a size takes 500 
+     * bytes, one that does not tell has no bytes yet, and one without flags takes no compression */
+    public void synAnswered(ByteBuffer answer) throws Exception {
+        int size = packet.maxDataLength;
+        long resumed = 0;
+        int flags = 0;
+        if (answer.remaining() >= 4) {
+            size = answer.getInt(answer.position());
+        }
+        if (answer.remaining() >= 12) {
+            resumed = answer.getLong(answer.position() + 4);
+        }
+        if (answer.remaining() >= 16) {
+            flags = answer.getInt(answer.position() + 12);
+        }
+        if (size < 1 || resumed < 0) {
+            System.err.println("ERROR: Invalid answer to the SYN from the receiver.");
             System.exit(1);
+        }
+        agreedSize = Math.min(size, segmentSize);
+        checksummed = checksums && (flags & SegmentChecksum.synFlag) != 0 && agreedSize > SegmentChecksum.length;
+        dataSize = checksummed ? agreedSize - SegmentChecksum.length : agreedSize;
+        if (fecBlock > 0 && (flags & ParityBlock.synFlag) != 0) {
+            parity = new ParityBlock(agreedSize);
+        }
+        if (pacingRate > 0 || autoPacing) {
+            pacer = new Pacer(pacingRate / streamCount, autoPacing, packet.headerLength + agreedSize, slotMask + 1, System.nanoTime());
+        }
+        resumed = Math.min(resumed, length);
+        if (resumed > 0) {
+            System.out.println("Stream " + stream + " resumes after " + resumed + " bytes already received");
+        }
+        if (compress && (flags & CompressionPipeline.synFlag) != 0) {
+            pipeline = openPipeline(offset + resumed, length - resumed);
+        } else if (dataSize != segmentSize || resumed > 0) {
+            source.close();
+            source = openSource(fileName, offset + resumed, length - resumed, dataSize);
+            segmentCount = source.getSegmentCount();
+        }
+    }
+
+    /* Resend a packet of the window and record its sequence number in the log file.
+     * Returns false if the pacer held it back or the socket buffer had no room for it */
+    public boolean retransmit(int seq) throws Exception {
+        packet p = window[seq & slotMask];
+        if (!dataSend(seq)) {
+            return false;
+        }
+        retransmitted[seq & slotMask] = true;
+        if (selectiveRepeat) {
+            timers.schedule(packetTimers[seq & slotMask], sentTime[seq & slotMask] + rtt.getRto());
+        }
+        metrics.packetRetransmitted(p.getLength());
+        if (logPackets) {
+            seqNumLog.log(p.getSeqNum());
+        }
+        return true;
+    }
+
+    /* Go back to the oldest unacknowledged packet and resend as many packets as the window allows,
+     * whatever the socket cannot take right now is resent by sendWindow() */
+    public void goBack() throws Exception {
+        sendNext = sendBase;
+        while (sendNext != nextSeqNum && sendNext - sendBase < currentWindow()) {
+            if (!retransmit(sendNext)) {
+                return;
+            }
+            sendNext++;
+        }
+    }
+
+    /* Send packets as long as the window is open, first the ones still to be resent after going
+     * back, then new ones. Returns true if it stopped with more packets allowed to be sent,
+     * either after a burst of maxBurst packets, because the socket buffer was full or because 
+     * the pacer holds the next packet back */
+    public boolean sendWindow() throws Exception {
+        for (int burst = 0; burst < maxBurst; burst++) {
+            if (!paritySend()) {
+                return true;
+            }
+            if (sendNext - sendBase >= currentWindow()) {
+                return false;
+            }
+            if (sendNext != nextSeqNum) {
+                /* Still going back after a timeout */
+                if (!retransmit(sendNext)) {
+                    return true;
+                }
+                sendNext++;
+            } else if (heldPacket != null || segmentReady(nextSegment)) {
+                packet p = heldPacket != null ? heldPacket : packetGenerator(nextSeqNum, nextSegment);
+                if (!dataSend(nextSeqNum)) {
+                    heldPacket = p;
+                    return true;
+                }
+                heldPacket = null;
+                if (parity != null) {
+                    if (parity.getCount() == 0) {
+                        parityFirst = nextSeqNum;
+                        timers.schedule(parityTimer, System.nanoTime() + Math.max(rtt.getSmoothedRtt(), minRto));
+                    }
+                    /* The parity covers the data, without the checksum of the packet */
+                    ByteBuffer data = p.getPayload().duplicate();
+                    if (checksummed) {
+                        data.limit(data.limit() - SegmentChecksum.length);
+                    }
+                    parity.add(data);
+                    if (parity.getCount() == fecBlock) {
+                        closeBlock();
+                    }
+                }
+                metrics.packetSent(p.getLength());
+                if (logPackets) {
+                    seqNumLog.log(p.getSeqNum());
+                }
+
+                if (selectiveRepeat) {
+                    timers.schedule(packetTimers[nextSeqNum & slotMask], sentTime[nextSeqNum & slotMask] + rtt.getRto());
+                } else if (sendBase == nextSeqNum) {
+                    timers.schedule(windowTimer, sentTime[nextSeqNum & slotMask] + rtt.getRto());
+                }
+                nextSeqNum++;
+                sendNext++;
+                nextSegment++;
+            } else if (parity != null && parity.getCount() > 0 && !parityDue && segmentsDone(nextSegment)) {
+                /* The last block of the stripe is short */
+                closeBlock();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Resend the oldest unacknowledged packet without waiting for its timer. In Go-Back-N the 
+     * receiver discarded every packet after it, so the sender goes back from it */
+    public void fastRetransmit() throws Exception {
+        metrics.fastRetransmit();
+        windowHalved();
+        if (selectiveRepeat) {
+            int slot = sendBase & slotMask;
+            resendDue[slot] = !retransmit(sendBase);
+            if (resendDue[slot]) {
+                /* Resent once the pacer lets it go, by its timer */
+                timers.schedule(packetTimers[slot], Math.max(pacedUntil, System.nanoTime() + 1000000L));
+            }
+        } else {
+            goBack();
+        }
+    }
+
+    /* Handle the timers that expired by currentTime. Any expiry of a retransmission timer backs off 
+     * the timeout and shrinks the window once */
+    public void timeOutRetransmission(long currentTime) throws Exception {
+        boolean timedOut = false;
+        TimerWheel.Timer timer;
+        while ((timer = timers.poll(currentTime)) != null) {
+            if (timer == parityTimer) {
+                /* The block is cut short, its parity goes out with the next packets */
+                closeBlock();
+                continue;
+            }
+            if (!timedOut && !(selectiveRepeat && resendDue[timer.getId()])) {
+                metrics.timeout();
+                rtt.backoff();
+                windowTimedOut();
+                timedOut = true;
+            }
+
+            if (selectiveRepeat) {
+                /* In Selective Repeat mode, resend only the unacknowledged packet whose own timer expired, 
+                   the timer of a slot belongs to the packet of the window kept in it */
+                int seq = sendBase + ((timer.getId() - sendBase) & slotMask);
+                resendDue[timer.getId()] = !retransmit(seq);
+                if (resendDue[timer.getId()]) {
+                    /* Held back by the pacer or no room in the socket buffer, try again once the 
+                       pacer lets it go or on the next tick, without counting another timeout */
+                    timers.schedule(timer, Math.max(pacedUntil, currentTime + 1000000L));
+                }
+            } else {
+                /* In the event of time out, restart the timer, go back to the oldest unacknowledged 
+                   packet and retransmit as many packets as the window allows */
+                timers.schedule(windowTimer, currentTime + rtt.getRto());
+                goBack();
+            }
+        }
+    }
+
+    /* Set up stream number stream, sending length bytes of the file starting at offset with its 
+     * own session and on its own port for ACKs */
+    public Sender(int stream, long offset, long length) {
+        this.stream = stream;
+        this.offset = offset;
+        this.length = length;
+        sessionId = (transferId + stream) & packet.maxSession;
+        ackPort = senderAckPort + stream;
+        rtt = new RttEstimator(initialRto, minRto);
+        timers = new TimerWheel(System.nanoTime());
+        createWindow();
+
+        /* Map the stripe of the file, packets are generated from it as the window advances */
+        source = openSource(fileName, offset, length, segmentSize);
+        segmentCount = source.getSegmentCount();
+
+        try {
+            senderChannel = DatagramChannel.open();
+            senderChannel.bind(new InetSocketAddress(ackPort));
+            senderChannel.configureBlocking(false);
+            selector = Selector.open();
+            channelKey = senderChannel.register(selector, SelectionKey.OP_READ);
         } catch (Exception e) {
-            System.err.println("ERROR: Something went wrong while receiving a packet");
+            System.err.println("ERROR: Unable to create senderChannel.");
             e.printStackTrace();
             System.exit(1);
         }
     }
 
-    public static void timeOutRetransmission(long currentTime) throws Exception {
-        long elapsedTime = currentTime - startTime;
+    /* Transfer the stripe of the stream, from its SYN to its EOT */
+    public void run() {
+        try {
+            handshake();
+
+            while (true) {
+                pacedUntil = 0;
+                timeOutRetransmission(System.nanoTime());
+
+                /* Window is not full, so more packets can be transmitted */
+                boolean moreToSend = sendWindow();
 
-        if (timerFlag && startTime != 0) {
-            /* In the event of time out, restart the timer and retransmit N packets */
-            if (elapsedTime >= timeOut) {
-                startTime = System.currentTimeMillis();
-                timerFlag = true;
-                for (int i = sendBase; i < nextSeqNum; i++) {
-                    packetSend(packets[i], netEmuAddress, netEmuDataPort, senderSocket);
-                    try {
-                        writeToFile(seqLog, Integer.toString(packets[i].getSeqNum()), 1);
-                    } catch (IOException e) {
-                        System.err.println("ERROR: Unable to write to " + seqLog);
-                        e.printStackTrace();
-                        System.exit(1);
+                /* All packets have been transmitted, close the connection with an EOT packet */
+                if (heldPacket == null && segmentsDone(nextSegment) && sendBase == nextSeqNum) {
+                    closeHandshake();
+                    selector.close();
+                    senderChannel.close();
+                    source.close();
+                    if (pipeline != null) {
+                        pipeline.close();
                     }
+                    return;
                 }
+
+                metrics.streamState(stream, currentWindow(), sendBase & 0xFFFFFFFFL, rtt.getRto(),
+                        pacer != null ? pacer.getRate() : 0);
+
+                /* Wait for ACKs, for room in the socket buffer, for the pacer or for the oldest timer 
+                 * to expire, without waiting at all while there is more to send */
+                channelKey.interestOps(writeBlocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                if (pacedUntil != 0 && !writeBlocked) {
+                    waitPaced(System.nanoTime());
+                } else if (moreToSend && !writeBlocked) {
+                    selector.selectNow();
+                } else {
+                    selector.select(receiveTimeout(System.nanoTime()));
+                }
+                selector.selectedKeys().clear();
+                receiveAcks();
             }
+        } catch (Exception e) {
+            System.err.println("ERROR: Something went wrong in stream with session " + sessionId);
+            e.printStackTrace();
+            System.exit(1);
         }
     }
 
+    public static LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /* Metrics of the last transfer, kept after main returns */
+    public static SenderMetrics getMetrics() {
+        return metrics;
+    }
+
     public static void main(String[] args) throws Exception {
 
         /* Validate input arguments */
-        if (args.length != 4) {
-            System.err.println("ERROR: Sender class requires exactly four arguments as follow:");
+        if (args.length < 4) {
+            System.err.println("ERROR: Sender class requires four arguments as follow:");
             System.err.println("       <host address of the network emulator>");
             System.err.println("       <UDP port number used by the emulator to receive data from the sender>");
             System.err.println("       <UDP port number used by the sender to receive ACKs from the emulator>");
-            System.err.println("       <name of the file to be transferred>.");
+            System.err.println("       <name of the file to be transferred>");
+            System.err.println("       followed by any of the options:");
+            System.err.println("       -mode <gbn|sr> -window <n> -seqbits <b> -cc <on|off> -rto <ms> -minrto <ms> -dupacks <n> -session <id> -segment <bytes> -compress <on|off> -checksum <on|off> -fec <k> -rate <bits/s|auto> -streams <n> -stats <s> -logs <on|off>.");
             System.exit(1);
         }
 
@@ -293,51 +1142,110 @@ public class Sender {
             System.exit(1);
         }
 
-        System.out.println("Starting to read file: " + fileName);
-        /* Read data from the specified file into a byte array */
-        String content = readFromFile(fileName);
-        /* Store the file content into an array of packets */
-        packets = packetGenerator(content);
+        try {
+            Options options = new Options(args, 4, "-mode", "-window", "-seqbits", "-cc", "-rto", "-minrto", "-dupacks", "-session", "-segment", "-compress", "-checksum", "-fec", "-rate", "-streams", "-stats", "-logs");
+            selectiveRepeat = options.getChoice("-mode", "gbn", "gbn", "sr").equals("sr");
+            windowSize = options.getInt("-window", windowSize);
+            seqSpace = new SequenceSpace(options.getInt("-seqbits", 5));
+            congestionControl = options.getChoice("-cc", "on", "on", "off").equals("on");
+            dupAckThreshold = options.getInt("-dupacks", dupAckThreshold);
+            transferId = options.getInt("-session", 1 + new Random().nextInt(packet.maxSession));
+            if (transferId < 0 || transferId > packet.maxSession) {
+                throw new Exception("invalid value for option -session: " + transferId);
+            }
+            segmentSize = options.getInt("-segment", segmentSize);
+            if (segmentSize < 1 || segmentSize > packet.maxSegmentLength) {
+                throw new Exception("invalid value for option -segment: " + segmentSize);
+            }
+            compress = options.getChoice("-compress", "off", "on", "off").equals("on");
+            checksums = options.getChoice("-checksum", "on", "on", "off").equals("on");
+            fecBlock = options.getInt("-fec", fecBlock);
+            autoPacing = options.get("-rate", "0").equals("auto");
+            pacingRate = autoPacing ? 0 : options.getLong("-rate", 0);
+            if (pacingRate < 0) {
+                throw new Exception("invalid value for option -rate: " + pacingRate);
+            }
+            streamCount = options.getInt("-streams", streamCount);
+            initialRto = options.getInt("-rto", 1000) * 1000000L;
+            minRto = options.getInt("-minrto", 10) * 1000000L;
+            statsInterval = options.getInt("-stats", 0);
+            logPackets = options.getChoice("-logs", "on", "on", "off").equals("on");
+        } catch (Exception e) {
+            System.err.println("ERROR: Invalid option, " + e.getMessage() + ".");
+            System.exit(1);
+        }
+
+        /* Go-Back-N needs a window smaller than the sequence space, Selective Repeat at most half of it */
+        long windowLimit = selectiveRepeat ? seqSpace.size() / 2 : seqSpace.size() - 1;
+        if (windowSize < 1 || windowSize > Math.min(windowLimit, maxWindowSize)) {
+            System.err.println("ERROR: Window size must be between 1 and " + Math.min(windowLimit, maxWindowSize) + ".");
+            System.exit(1);
+        }
+        if (fecBlock < 0 || fecBlock > Math.min(ParityBlock.maxBlock, seqSpace.size() - windowSize)) {
+            System.err.println("ERROR: Parity block length must be between 0 and " + Math.min(ParityBlock.maxBlock, seqSpace.size() - windowSize) + ".");
+            System.exit(1);
+        }
+        if (streamCount < 1 || senderAckPort + streamCount - 1 > 65535) {
+            System.err.println("ERROR: Number of streams must be between 1 and " + (65536 - senderAckPort) + ".");
+            System.exit(1);
+        }
 
+        /* Resolve the address of the Network Emulator once, every datagram is sent to it */
         try {
-            senderSocket = new DatagramSocket(senderAckPort);
+            emulatorAddress = new InetSocketAddress(InetAddress.getByName(netEmuAddress), netEmuDataPort);
         } catch (Exception e) {
-            System.err.println("ERROR: Unable to create senderSocket.");
+            System.err.println("ERROR: Unable to obtain the IP address of the Network Emulator.");
             e.printStackTrace();
             System.exit(1);
         }
 
-        senderSocket.setSoTimeout(timeOut);
-        while (true) {
-            timeOutRetransmission(System.currentTimeMillis());
-
-            /* Window is not full, so more packets can be transmitted */
-            if ((nextSeqNum < (sendBase + windowSize)) && (nextSeqNum < packets.length)) {
-                packetSend(packets[nextSeqNum], netEmuAddress, netEmuDataPort, senderSocket);
-                try {
-                    writeToFile(seqLog, Integer.toString(packets[nextSeqNum].getSeqNum()), 1);
-                } catch (Exception e) {
-                    System.err.println("ERROR: Unable to write to " + seqLog);
-                    e.printStackTrace();
-                    System.exit(1);
-                }
+        System.out.println("Starting to read file: " + fileName);
+        /* Cut the file into one stripe of whole segments per stream, leaving no stream empty */
+        FileSegmentSource whole = openSource(fileName, 0, Long.MAX_VALUE, segmentSize);
+        long segments = whole.getSegmentCount();
+        whole.close();
+        long stripeSegments = Math.max(1, (segments + streamCount - 1) / streamCount);
+        streamCount = (int) Math.max(1, (segments + stripeSegments - 1) / stripeSegments);
 
-                if (sendBase == nextSeqNum) {
-                    startTime = System.currentTimeMillis();
-                    timerFlag = true;
+        if (logPackets) {
+            seqNumLog = openLog(seqLog);
+            ackNumLog = openLog(ackLog);
+        }
+        if (compress) {
+            compressors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "compressor");
+                    t.setDaemon(true);
+                    return t;
                 }
-                nextSeqNum++;
+            });
+        }
+        metrics = new SenderMetrics(streamCount, ackLatency);
+        MetricsReporter reporter = new MetricsReporter("GoBackN:type=Sender", metrics, new Callable<String>() {
+            public String call() {
+                return metrics.getSnapshot();
             }
+        }, statsInterval);
 
-            receivePacket();
-            
-            /* All packets have been transmitted, send an EOT packet and close the connection */
-            if (packets.length == sendBase) {
-                packetSend(packet.createEOT(nextSeqNum), netEmuAddress, netEmuDataPort, senderSocket);
-                senderSocket.close();
-                return;
-            }
+        /* The main thread runs the last stream itself */
+        Thread streams[] = new Thread[streamCount - 1];
+        for (int i = 0; i < streamCount - 1; i++) {
+            Sender stream = new Sender(i, i * stripeSegments * segmentSize, stripeSegments * segmentSize);
+            streams[i] = new Thread(stream, "stream " + i);
+            streams[i].start();
+        }
+        int last = streamCount - 1;
+        new Sender(last, last * stripeSegments * segmentSize, stripeSegments * segmentSize).run();
+        for (Thread stream : streams) {
+            stream.join();
+        }
+        reporter.close();
+        if (compressors != null) {
+            compressors.shutdown();
+        }
+        if (logPackets) {
+            seqNumLog.close();
+            ackNumLog.close();
         }
-
     }
 }
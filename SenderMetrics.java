@@ -0,0 +1,196 @@
+/*
+ *
+ * File:   SenderMetrics.java
+ *
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Class Description:
+ *
+ *   The SenderMetrics class counts what the streams of a Sender do while they run, so a transfer
+ *   can be watched over JMX or in the snapshots printed with -stats, without reading the logs.
+ *   The streams update it from their event loops without taking any lock: counters are
+ *   LongAdders, the gauges of each stream are slots of an AtomicLongArray written with lazySet,
+ *   and round trip times go into a LatencyHistogram. Readers only ever see a value that is at
+ *   most a moment old.
+ *
+ */
+
+public class SenderMetrics implements SenderMetricsMBean {
+
+    /* Global Variables */
+    private final long startTime = System.nanoTime();
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsRetransmitted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder acksReceived = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder();
+    private final LongAdder parityPackets = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesAcked = new LongAdder();
+
+    /* Gauges, one slot per stream */
+    private final AtomicLongArray window;
+    private final AtomicLongArray sendBase;
+    private final AtomicLongArray rto;
+    private final AtomicLongArray pacingRate;
+
+    private final LatencyHistogram rtt;
+
+    /* Metrics of streams streams, recording round trip times into rtt */
+    public SenderMetrics(int streams, LatencyHistogram rtt) {
+        this.window = new AtomicLongArray(streams);
+        this.sendBase = new AtomicLongArray(streams);
+        this.rto = new AtomicLongArray(streams);
+        this.pacingRate = new AtomicLongArray(streams);
+        this.rtt = rtt;
+    }
+
+    public void packetSent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void packetRetransmitted(int bytes) {
+        packetsRetransmitted.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void paritySent(int bytes) {
+        parityPackets.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    public void fastRetransmit() {
+        fastRetransmits.increment();
+    }
+
+    public void ackReceived() {
+        acksReceived.increment();
+    }
+
+    public void duplicateAck() {
+        duplicateAcks.increment();
+    }
+
+    public void bytesAcked(long bytes) {
+        bytesAcked.add(bytes);
+    }
+
+    public void rttSample(long nanos) {
+        rtt.record(nanos);
+    }
+
+    /* Publish the current state of a stream */
+    public void streamState(int stream, int currentWindow, long base, long rtoNanos, long rate) {
+        window.lazySet(stream, currentWindow);
+        sendBase.lazySet(stream, base);
+        rto.lazySet(stream, rtoNanos / 1000000);
+        pacingRate.lazySet(stream, rate);
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    public long getPacketsRetransmitted() {
+        return packetsRetransmitted.sum();
+    }
+
+    public long getParityPackets() {
+        return parityPackets.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getFastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    public long getAcksReceived() {
+        return acksReceived.sum();
+    }
+
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesAcked() {
+        return bytesAcked.sum();
+    }
+
+    public double getThroughput() {
+        return perSecond(bytesSent.sum());
+    }
+
+    public double getGoodput() {
+        return perSecond(bytesAcked.sum());
+    }
+
+    public long[] getWindow() {
+        return toArray(window);
+    }
+
+    public long[] getSendBase() {
+        return toArray(sendBase);
+    }
+
+    public long[] getRtoMillis() {
+        return toArray(rto);
+    }
+
+    public long[] getPacingRate() {
+        return toArray(pacingRate);
+    }
+
+    public double getRttP50Micros() {
+        return rtt.getPercentile(50) / 1e3;
+    }
+
+    public double getRttP99Micros() {
+        return rtt.getPercentile(99) / 1e3;
+    }
+
+    public double getRttP999Micros() {
+        return rtt.getPercentile(99.9) / 1e3;
+    }
+
+    public String getSnapshot() {
+        return String.format("sent %d, retransmitted %d, parity %d, timeouts %d, fast retransmits %d, acks %d, duplicate acks %d, "
+                + "throughput %.1f KB/s, goodput %.1f KB/s, window %s, send base %s, rto %s ms, "
+                + "pacing %s bits/s, rtt p50 %.1f us p99 %.1f us p99.9 %.1f us",
+                getPacketsSent(), getPacketsRetransmitted(), getParityPackets(), getTimeouts(), getFastRetransmits(), getAcksReceived(),
+                getDuplicateAcks(), getThroughput() / 1e3, getGoodput() / 1e3, Arrays.toString(getWindow()),
+                Arrays.toString(getSendBase()), Arrays.toString(getRtoMillis()),
+                Arrays.toString(getPacingRate()), getRttP50Micros(),
+                getRttP99Micros(), getRttP999Micros());
+    }
+
+    private double perSecond(long count) {
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed > 0 ? count * 1e9 / elapsed : 0;
+    }
+
+    private static long[] toArray(AtomicLongArray gauges) {
+        long values[] = new long[gauges.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = gauges.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ *
+ * File:   SenderMetricsMBean.java
+ *
+ */
+
+/*
+ * Interface Description:
+ *
+ *   Attributes of the SenderMetrics of a running Sender, as seen over JMX under the name
+ *   GoBackN:type=Sender. Counters cover the whole run of the Sender, over all of its streams;
+ *   the window, the send base, the timeout and the pacing rate are given per stream.
+ *
+ */
+
+public interface SenderMetricsMBean {
+
+    /* New data packets sent, and packets sent again after a timeout or a fast retransmit */
+    long getPacketsSent();
+
+    long getPacketsRetransmitted();
+
+    /* Parity packets sent for forward error correction */
+    long getParityPackets();
+
+    long getTimeouts();
+
+    long getFastRetransmits();
+
+    long getAcksReceived();
+
+    long getDuplicateAcks();
+
+    /* Payload bytes sent, including retransmissions and parity, and payload bytes acknowledged */
+    long getBytesSent();
+
+    long getBytesAcked();
+
+    /* Bytes per second sent (throughput) and acknowledged (goodput) since the start */
+    double getThroughput();
+
+    double getGoodput();
+
+    /* Current window in packets, oldest unacknowledged packet and timeout in milliseconds of every stream */
+    long[] getWindow();
+
+    long[] getSendBase();
+
+    long[] getRtoMillis();
+
+    /* Rate the data packets of every stream are paced at in bits per second, 0 if not paced */
+    long[] getPacingRate();
+
+    /* Round trip time percentiles in microseconds, measured on packets sent once */
+    double getRttP50Micros();
+
+    double getRttP99Micros();
+
+    double getRttP999Micros();
+
+    /* All of the above on one line */
+    String getSnapshot();
+}
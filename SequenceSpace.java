@@ -0,0 +1,53 @@
+/*
+ *
+ * File:   SequenceSpace.java
+ *
+ */
+
+/*
+ * Class Description:
+ *
+ *   The SequenceSpace class holds the arithmetic on sequence numbers shared by the Sender and
+ *   the Receiver. Both sides count packets with plain 32-bit integers that are allowed to wrap
+ *   around, and only the low <bits> bits of the count are carried in a packet.
+ *   All comparisons are done on differences of sequence numbers, never on their values, so they
+ *   stay correct when either the counters or the carried sequence numbers wrap around.
+ *
+ */
+
+public class SequenceSpace {
+
+    /* Global Variables */
+    private final int bits;
+    private final int mask;
+    private final long distanceMask;
+
+    public SequenceSpace(int bits) throws Exception {
+        if (bits < 1 || bits > 32) {
+            throw new Exception("sequence number bits must be between 1 and 32");
+        }
+        this.bits = bits;
+        this.mask = (int) ((1L << bits) - 1);
+        this.distanceMask = (1L << bits) - 1;
+    }
+
+    /* Number of distinct sequence numbers carried in packets */
+    public long size() {
+        return 1L << bits;
+    }
+
+    /* Sequence number carried in the packet for the packet counter seq */
+    public int wrap(int seq) {
+        return seq & mask;
+    }
+
+    /* Number of steps forward from sequence number from to sequence number to, never negative */
+    public long distance(int from, int to) {
+        return (to - from) & distanceMask;
+    }
+
+    /* True if the 32-bit counter a comes before the counter b */
+    public static boolean before(int a, int b) {
+        return a - b < 0;
+    }
+}
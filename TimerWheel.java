@@ -0,0 +1,201 @@
+/*
+ *
+ * File:   TimerWheel.java
+ *
+ */
+
+/*
+ * Class Description:
+ *
+ *   The TimerWheel class keeps the timers of an event loop in a hashed timing wheel: a ring of
+ *   slots, one per tick of 1 ms by default, where a timer due at tick t is linked into slot
+ *   t modulo the number of slots. Starting and stopping a timer only links it into or out of
+ *   its slot, whatever the number of timers, and a timer due more than one turn of the wheel
+ *   ahead simply stays in its slot until the wheel comes round to its tick.
+ *   The owner of the wheel takes the expired timers with poll() and waits in between until
+ *   nextDeadline(), which is only recomputed after the earliest timer expired or was stopped,
+ *   so an idle loop neither spins nor wakes up at fixed intervals.
+ *   Timers fire at the first tick at or after their deadline, never before it. A wheel is not
+ *   thread safe, it belongs to the thread of the loop that uses it.
+ *   All times are in nanoseconds, as returned by System.nanoTime.
+ *
+ */
+
+public class TimerWheel {
+
+    /* A timer that can be started and stopped any number of times, on one wheel at a time */
+    public static class Timer {
+        private final int id;
+        private final Object owner;
+        private long deadline = 0;
+        private long tick = 0;
+        private Timer previous = null;
+        private Timer next = null;
+        private boolean scheduled = false;
+
+        public Timer(int id, Object owner) {
+            this.id = id;
+            this.owner = owner;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Object getOwner() {
+            return owner;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    /* Global Variables */
+    private final long origin;
+    private final long tickLength;
+    private final Timer slots[];
+    private final int slotMask;
+    private long cursor = 0;
+    private int count = 0;
+
+    /* Earliest deadline of any timer, or a lower bound of it once that timer was stopped */
+    private long earliest = 0;
+    private boolean earliestKnown = true;
+
+    /* Wheel of at least slotCount slots of tickLength nanoseconds, starting at now */
+    public TimerWheel(long tickLength, int slotCount, long now) {
+        int size = 1;
+        while (size < slotCount) {
+            size <<= 1;
+        }
+        this.origin = now;
+        this.tickLength = tickLength;
+        this.slots = new Timer[size];
+        this.slotMask = size - 1;
+    }
+
+    public TimerWheel(long now) {
+        this(1000000L, 1024, now);
+    }
+
+    /* Start timer to expire at deadline, restarting it if it is running */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.scheduled) {
+            cancel(timer);
+        }
+        /* The first tick at or after the deadline, or the current one if that has passed */
+        long offset = deadline - origin;
+        long tick = offset <= 0 ? 0 : (offset + tickLength - 1) / tickLength;
+        timer.tick = Math.max(tick, cursor);
+        timer.deadline = deadline;
+        timer.scheduled = true;
+
+        int slot = (int) (timer.tick & slotMask);
+        timer.previous = null;
+        timer.next = slots[slot];
+        if (slots[slot] != null) {
+            slots[slot].previous = timer;
+        }
+        slots[slot] = timer;
+
+        if (count == 0 || (earliestKnown && deadline - earliest < 0)) {
+            earliest = deadline;
+            earliestKnown = true;
+        }
+        count++;
+    }
+
+    /* Stop timer, if it is running */
+    public void cancel(Timer timer) {
+        if (!timer.scheduled) {
+            return;
+        }
+        int slot = (int) (timer.tick & slotMask);
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            slots[slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+        count--;
+        if (timer.deadline == earliest) {
+            earliestKnown = false;
+        }
+    }
+
+    /* Take one timer that expired by now off the wheel, or return null if there is none */
+    public Timer poll(long now) {
+        if (count == 0) {
+            return null;
+        }
+        long nowTick = (now - origin) / tickLength;
+        /* After a whole turn without looking, one more turn visits every slot */
+        if (nowTick - cursor >= slots.length) {
+            cursor = nowTick - slots.length + 1;
+        }
+        while (cursor <= nowTick) {
+            for (Timer timer = slots[(int) (cursor & slotMask)]; timer != null; timer = timer.next) {
+                if (timer.tick <= cursor) {
+                    cancel(timer);
+                    return timer;
+                }
+            }
+            cursor++;
+        }
+        cursor = nowTick;
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /* Deadline of the earliest running timer, Long.MAX_VALUE if none is running */
+    public long nextDeadline() {
+        if (count == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (!earliestKnown) {
+            earliest = findEarliest();
+            earliestKnown = true;
+        }
+        return earliest;
+    }
+
+    /* Find the first tick from the cursor on at which a timer is due, going round at most once */
+    private long findEarliest() {
+        for (long tick = cursor; tick < cursor + slots.length; tick++) {
+            long found = 0;
+            boolean due = false;
+            for (Timer timer = slots[(int) (tick & slotMask)]; timer != null; timer = timer.next) {
+                if (timer.tick <= tick && (!due || timer.deadline - found < 0)) {
+                    found = timer.deadline;
+                    due = true;
+                }
+            }
+            if (due) {
+                return found;
+            }
+        }
+        /* Every timer is more than a turn away */
+        long found = Long.MAX_VALUE;
+        for (Timer first : slots) {
+            for (Timer timer = first; timer != null; timer = timer.next) {
+                if (found == Long.MAX_VALUE || timer.deadline - found < 0) {
+                    found = timer.deadline;
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *
+ * File:   TransferCheckpoint.java
+ *
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * Class Description:
+ *
+ *   The TransferCheckpoint class keeps the progress of a transfer in a small sidecar file next
+ *   to the output file, <name of the file>.ckpt, so that a transfer cut short by the death of
+ *   the Sender or the Receiver can carry on where it stopped instead of starting over.
+ *   It records the file it is a transfer of, as its Sender names it, the size of the file, the
+ *   number of streams and, for the stripe starting at every offset, how many of its bytes are
+ *   in the output file. The SYN answer tells every stream of the Sender how many bytes of its
+ *   stripe are stored, and the stream carries on after them.
+ *   A new checkpoint is written to a temporary file first and then moved over the old one, so
+ *   a crash at any time leaves either the old or the new checkpoint, never a partial one.
+ *   A checkpoint is not thread safe, its ReceiverTransfer serializes the use of it.
+ *
+ */
+
+public class TransferCheckpoint {
+
+    /* Global Variables */
+    private final Path path;
+    private final Path temporary;
+    private String source = "";
+    private long size = -1;
+    private int streams = 0;
+    private final Map<Long, Long> done = new HashMap<Long, Long>();
+
+    /* Checkpoint of the transfer into the supplied file */
+    public TransferCheckpoint(String fileName) {
+        this.path = Paths.get(fileName + ".ckpt");
+        this.temporary = Paths.get(fileName + ".ckpt.tmp");
+    }
+
+    /* Read the checkpoint left by a previous run, returning false if there is none or it is unreadable */
+    public boolean load() {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            properties.load(in);
+            source = properties.getProperty("source", "");
+            size = Long.parseLong(properties.getProperty("size"));
+            streams = Integer.parseInt(properties.getProperty("streams"));
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith("stripe.")) {
+                    done.put(Long.parseLong(name.substring(7)), Long.parseLong(properties.getProperty(name)));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("WARNING: Unable to read the checkpoint <" + path + ">");
+            clear();
+            return false;
+        }
+        return true;
+    }
+
+    /* Whether the loaded checkpoint is of the source file of size bytes over the given number of
+     * streams, and every byte it counts is within the length of the output file */
+    public boolean matches(String source, long size, int streams, long fileLength) {
+        if (!this.source.equals(source) || this.size != size || this.streams != streams) {
+            return false;
+        }
+        for (Map.Entry<Long, Long> stripe : done.entrySet()) {
+            if (stripe.getValue() < 0 || stripe.getKey() + stripe.getValue() > fileLength) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Forget the loaded checkpoint, starting over for the source file of size bytes over the given 
+     * number of streams */
+    public void reset(String source, long size, int streams) {
+        clear();
+        this.source = source;
+        this.size = size;
+        this.streams = streams;
+    }
+
+    private void clear() {
+        source = "";
+        size = -1;
+        streams = 0;
+        done.clear();
+    }
+
+    /* Bytes of the stripe starting at offset that are in the output file */
+    public long getDone(long offset) {
+        Long bytes = done.get(offset);
+        return bytes == null ? 0 : bytes;
+    }
+
+    public void setDone(long offset, long bytes) {
+        done.put(offset, bytes);
+    }
+
+    /* Replace the checkpoint on disk by the current one */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("source", source);
+        properties.setProperty("size", String.valueOf(size));
+        properties.setProperty("streams", String.valueOf(streams));
+        for (Map.Entry<Long, Long> stripe : done.entrySet()) {
+            properties.setProperty("stripe." + stripe.getKey(), String.valueOf(stripe.getValue()));
+        }
+        try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+            properties.store(out, "progress of the transfer into " + path.getFileName());
+            out.getFD().sync();
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /* Remove the checkpoint once the transfer is complete */
+    public void delete() throws IOException {
+        Files.deleteIfExists(temporary);
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *
+ * File:   BenchmarkSupport.java
+ *
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.function.*;
+
+/*
+ * Class Description:
+ *
+ *   The BenchmarkSupport class gives the JMH benchmarks access to the programs. JMH does not
+ *   accept benchmarks in the unnamed package, and classes in a named package cannot refer to
+ *   the ones in the unnamed package, so the benchmarks (package bench) look up these methods
+ *   once by reflection, and then only call the JDK functional interfaces they return.
+ *
+ */
+
+public class BenchmarkSupport {
+
+    /* Encode a data packet with length bytes of payload at the position of a buffer */
+    public static Consumer<ByteBuffer> encoder(int length) throws Exception {
+        final packet p = packet.createPacket(7, ByteBuffer.allocate(length));
+        return dst -> p.encode(dst);
+    }
+
+    /* Decode a datagram in place into the same packet every time */
+    public static Function<ByteBuffer, Object> decoder() {
+        final packet p = new packet();
+        return src -> {
+            try {
+                return packet.parseUDPdata(src, p);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /* Encode a data packet with length bytes of payload into a new array, like getUDPdata always did */
+    public static Supplier<byte[]> arrayEncoder(int length) throws Exception {
+        final packet p = packet.createPacket(7, ByteBuffer.allocate(length));
+        return () -> p.getUDPdata();
+    }
+
+    /* Decode a datagram into a new packet */
+    public static Function<byte[], Object> arrayDecoder() {
+        return data -> {
+            try {
+                return packet.parseUDPdata(data);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /* Cut the segment with the given index, modulo the number of segments, out of a file and
+     * make it the payload of a packet, like the Sender does when a packet enters the window */
+    public static LongFunction<Object> segmenter(String fileName) throws IOException {
+        final FileSegmentSource source = new FileSegmentSource(fileName, packet.maxDataLength);
+        final ByteBuffer data = ByteBuffer.allocate(packet.maxDataLength);
+        final packet p = new packet();
+        return index -> {
+            try {
+                source.readSegment(index % source.getSegmentCount(), data);
+                return p.set(1, (int) index, data);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /* Run a Receiver with the given arguments on a daemon thread */
+    public static void startReceiver(final String args[]) {
+        Thread receiver = new Thread(() -> {
+            try {
+                Receiver.main(args);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /* Run a NetEmulator between the ports given, with a fixed seed */
+    public static Closeable startEmulator(int forwardPort, int receiverPort, int backwardPort, int senderPort,
+            int maxDelay, double dropProbability) throws IOException {
+        final NetEmulator emulator = new NetEmulator(forwardPort, "localhost", receiverPort, backwardPort,
+                "localhost", senderPort, maxDelay, dropProbability, false).setSeed(1);
+        emulator.start();
+        return () -> emulator.close();
+    }
+
+    /* Transfer a file by running the Sender with the given arguments on the calling thread */
+    public static Consumer<String[]> sender() {
+        return args -> {
+            try {
+                Sender.main(args);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /* Percentiles of the ACK latency measured by the Sender, in nanoseconds */
+    public static DoubleToLongFunction ackLatency() {
+        return percentile -> Sender.getAckLatency().getPercentile(percentile);
+    }
+
+    public static Runnable resetAckLatency() {
+        return () -> Sender.getAckLatency().reset();
+    }
+
+    /* Data packets the last transfer of the Sender put on the wire: new ones, resent ones and parity */
+    public static LongSupplier packetsSent() {
+        return () -> {
+            SenderMetrics metrics = Sender.getMetrics();
+            return metrics.getPacketsSent() + metrics.getPacketsRetransmitted() + metrics.getParityPackets();
+        };
+    }
+}
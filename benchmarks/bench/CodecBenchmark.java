@@ -0,0 +1,80 @@
+/*
+ *
+ * File:   CodecBenchmark.java
+ *
+ */
+
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Class Description:
+ *
+ *   Microbenchmarks of the packet codec: encoding into and decoding in place from a reused
+ *   buffer, as the Sender and the Receiver do, next to getUDPdata and parseUDPdata(byte[]),
+ *   which allocate a new array or packet every time. Run with -prof gc to see the allocations.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /* Payload bytes: an ACK, and a full data packet */
+    @Param({"0", "500"})
+    public int length;
+
+    private Consumer<ByteBuffer> encoder;
+    private Function<ByteBuffer, Object> decoder;
+    private Supplier<byte[]> arrayEncoder;
+    private Function<byte[], Object> arrayDecoder;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private ByteBuffer datagram;
+    private byte datagramArray[];
+
+    @Setup
+    public void setup() {
+        encoder = Support.call("encoder", length);
+        decoder = Support.call("decoder");
+        arrayEncoder = Support.call("arrayEncoder", length);
+        arrayDecoder = Support.call("arrayDecoder");
+
+        datagramArray = arrayEncoder.get();
+        datagram = ByteBuffer.wrap(datagramArray.clone());
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        buffer.clear();
+        encoder.accept(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object decode() {
+        datagram.clear();
+        return decoder.apply(datagram);
+    }
+
+    @Benchmark
+    public byte[] encodeToArray() {
+        return arrayEncoder.get();
+    }
+
+    @Benchmark
+    public Object decodeFromArray() {
+        return arrayDecoder.apply(datagramArray);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ * File:   SegmentBenchmark.java
+ *
+ */
+
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Class Description:
+ *
+ *   Microbenchmark of segmentation: cutting consecutive 500 byte segments out of a memory-mapped
+ *   file and making each the payload of a packet, which is what the Sender does for every packet
+ *   that enters its window. The file is larger than one mapped region, so remapping is included.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+
+    /* Size of the file to cut into segments */
+    @Param({"134217728"})
+    public long fileSize;
+
+    private File file;
+    private LongFunction<Object> segmenter;
+    private long index = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("segments", ".bin");
+        byte block[] = new byte[1 << 20];
+        new Random(1).nextBytes(block);
+        try (java.io.OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        segmenter = Support.call("segmenter", file.getPath());
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Object nextSegment() {
+        return segmenter.apply(index++);
+    }
+}
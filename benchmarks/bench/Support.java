@@ -0,0 +1,37 @@
+/*
+ *
+ * File:   Support.java
+ *
+ */
+
+package bench;
+
+import java.lang.reflect.Method;
+
+/*
+ * Class Description:
+ *
+ *   The Support class calls the methods of BenchmarkSupport, which lives in the unnamed package
+ *   with the programs, by name. It is only used while setting up a benchmark, never inside one.
+ *
+ */
+
+final class Support {
+
+    private Support() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T call(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("BenchmarkSupport").getMethods()) {
+                if (method.getName().equals(name)) {
+                    return (T) method.invoke(null, args);
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("BenchmarkSupport." + name + " failed", e);
+        }
+        throw new IllegalStateException("BenchmarkSupport." + name + " does not exist");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ * File:   TransferBenchmark.java
+ *
+ */
+
+package bench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleToLongFunction;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Class Description:
+ *
+ *   End-to-end benchmark of a whole file transfer over loopback: the Sender runs on the benchmark
+ *   thread, and a Receiver and a NetEmulator (no delay, seeded loss) run in the same JVM. The
+ *   primary result is transfers per second, the Metrics counters add the goodput, the packet rate
+ *   and the allocation rate of the sending thread. JMH sums event counters over iterations, so
+ *   the percentiles of the ACK latency the Sender measured are printed after each iteration.
+ *
+ *   Run with -p mode=sr for Selective Repeat, and with -p segment=8000 for larger segments.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class TransferBenchmark {
+
+    /* Ports of the emulator, the receiver, the emulator again and the sender */
+    private static final int forwardPort = 47410;
+    private static final int receiverPort = 47411;
+    private static final int backwardPort = 47412;
+    private static final int senderPort = 47413;
+
+    @Param({"1000000", "10000000"})
+    public long fileSize;
+
+    @Param({"10", "100", "1000"})
+    public int window;
+
+    @Param({"0", "0.01"})
+    public double loss;
+
+    @Param({"gbn"})
+    public String mode;
+
+    @Param({"500"})
+    public int segment;
+
+    private File directory;
+    private File input;
+    private Closeable emulator;
+    private PrintStream console;
+    private int session = 0;
+
+    private Consumer<String[]> sender;
+    private DoubleToLongFunction ackLatency;
+    private Runnable resetAckLatency;
+    private LongSupplier packetsSent;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /* Rates per second over each iteration: the goodput, the packets carried, and how fast the
+     * sending thread allocates, which over packets/s gives the bytes allocated per packet */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Metrics {
+        public double megabytes;
+        public long packets;
+        public long allocatedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+            packets = 0;
+            allocatedBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("transfer").toFile();
+        input = new File(directory, "input");
+        byte block[] = new byte[1 << 20];
+        new Random(1).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(input.toPath())) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+
+        /* The programs report progress on standard output, keep it out of the results */
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        emulator = Support.call("startEmulator", forwardPort, receiverPort, backwardPort, senderPort, 0, loss);
+        Support.call("startReceiver", (Object) new String[] {
+                "localhost", String.valueOf(backwardPort), String.valueOf(receiverPort),
+                new File(directory, "output").getPath(),
+                "-sessions", "0", "-mode", mode, "-window", String.valueOf(window), "-seqbits", "16"});
+        sender = Support.call("sender");
+        ackLatency = Support.call("ackLatency");
+        resetAckLatency = Support.call("resetAckLatency");
+        packetsSent = Support.call("packetsSent");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetIteration() {
+        resetAckLatency.run();
+    }
+
+    /* Without a checkpoint the receiver appends every transfer of the same file to its output, 
+     * so each transfer starts from an empty directory */
+    @Setup(Level.Invocation)
+    public void clearOutput() {
+        removeOutput();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        console.printf("ACK latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n", ackLatency.applyAsLong(50) / 1e3,
+                ackLatency.applyAsLong(99) / 1e3, ackLatency.applyAsLong(99.9) / 1e3);
+        removeOutput();
+    }
+
+    private void removeOutput() {
+        for (File file : directory.listFiles()) {
+            if (!file.equals(input)) {
+                file.delete();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        emulator.close();
+        System.setOut(console);
+        removeOutput();
+        input.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void transfer(Metrics metrics) {
+        /* Each transfer gets a session of its own, as a finished session lingers at the receiver */
+        session = session % 65535 + 1;
+        String args[] = {
+                "localhost", String.valueOf(forwardPort), String.valueOf(senderPort), input.getPath(),
+                "-mode", mode, "-window", String.valueOf(window), "-seqbits", "16",
+                "-segment", String.valueOf(segment), "-streams", "1", "-session", String.valueOf(session)};
+
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        sender.accept(args);
+        metrics.allocatedBytes += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        metrics.megabytes += fileSize / 1e6;
+        metrics.packets += packetsSent.getAsLong();
+    }
+}
@@ -5,42 +5,99 @@ import java.nio.ByteBuffer;
 public class packet {
 	
 	// constants
-	private final int maxDataLength = 500;
-	private final int SeqNumModulo = 32;
+	public static final int headerLength = 12;
+	// segment size used unless the Sender and the Receiver agree on another one in the SYN,
+	// up to the largest payload a UDP datagram can carry after the header
+	public static final int maxDataLength = 500;
+	public static final int maxSegmentLength = 65507 - headerLength;
+	public static final int maxSession = 0xFFFF;
+	private static final ByteBuffer noData = ByteBuffer.allocate(0);
 	
 	// data members
+	// the session sits in the high 16 bits of the first header word and the type in the low 16 bits,
+	// so packets of session 0 are encoded exactly like packets without a session
+	private int session;
 	private int type;
 	private int seqnum;
-	private String data;
+	// payload is the remaining bytes of data, which may be a view over a larger buffer
+	private ByteBuffer data;
 	
 	//////////////////////// CONSTRUCTORS //////////////////////////////////////////
 	
 	// hidden constructor to prevent creation of invalid packets
-	private packet(int Type, int SeqNum, String strData) throws Exception {
-		// if data seqment larger than allowed, then throw exception
-		if (strData.length() > maxDataLength)
-			throw new Exception("data too large (max 500 chars)");
-			
-		type = Type;
-		seqnum = SeqNum % SeqNumModulo;
-		data = strData;
+	private packet(int Type, int SeqNum, ByteBuffer payload) throws Exception {
+		set(Type, SeqNum, payload);
+	}
+	
+	// empty packet to be filled in place by set() or parseUDPdata(ByteBuffer, packet)
+	public packet() {
+		session = 0;
+		type = 0;
+		seqnum = 0;
+		data = noData;
 	}
 	
 	// special packet constructors to be used in place of hidden constructor
 	public static packet createACK(int SeqNum) throws Exception {
-		return new packet(0, SeqNum, new String());
+		return new packet(0, SeqNum, noData);
+	}
+	
+	// the packet keeps a view over the first length bytes of data, they are not copied
+	public static packet createPacket(int SeqNum, byte[] data, int length) throws Exception {
+		return new packet(1, SeqNum, ByteBuffer.wrap(data, 0, length));
 	}
 	
-	public static packet createPacket(int SeqNum, String data) throws Exception {
+	// the packet keeps a view over the remaining bytes of data, they are not copied
+	public static packet createPacket(int SeqNum, ByteBuffer data) throws Exception {
 		return new packet(1, SeqNum, data);
 	}
 	
 	public static packet createEOT(int SeqNum) throws Exception {
-		return new packet(2, SeqNum, new String());
+		return new packet(2, SeqNum, noData);
+	}
+	
+	// an EOT may carry what the stream sent or received in data, for the other side to check
+	public static packet createEOT(int SeqNum, ByteBuffer data) throws Exception {
+		return new packet(2, SeqNum, data);
+	}
+	
+	// the Sender opens a transfer with a SYN announcing it in data, the Receiver answers with a SYN
+	public static packet createSYN(int SeqNum, ByteBuffer data) throws Exception {
+		return new packet(3, SeqNum, data);
+	}
+	
+	// parity packet of forward error correction, covering the block starting at SeqNum
+	public static packet createParity(int SeqNum, ByteBuffer data) throws Exception {
+		return new packet(4, SeqNum, data);
+	}
+	
+	// refill an existing packet so that the same instance can be reused for every datagram,
+	// the sequence number is carried as given, callers wrap it into their sequence space
+	public packet set(int Type, int SeqNum, ByteBuffer payload) throws Exception {
+		// if data seqment larger than allowed, then throw exception
+		if (payload.remaining() > maxSegmentLength)
+			throw new Exception("data too large (max " + maxSegmentLength + " bytes)");
+			
+		type = Type;
+		seqnum = SeqNum;
+		data = payload;
+		return this;
+	}
+	
+	// tag the packet with the transfer it belongs to, set() leaves the session unchanged
+	public packet setSession(int Session) throws Exception {
+		if (Session < 0 || Session > maxSession)
+			throw new Exception("session out of range (0 to 65535)");
+		session = Session;
+		return this;
 	}
 	
 	///////////////////////// PACKET DATA //////////////////////////////////////////
 	
+	public int getSession() {
+		return session;
+	}
+	
 	public int getType() {
 		return type;
 	}
@@ -50,31 +107,56 @@ public class packet {
 	}
 	
 	public int getLength() {
-		return data.length();
+		return data.remaining();
 	}
 	
+	// copy of the payload bytes
 	public byte[] getData() {
-		return data.getBytes();
+		byte[] bytes = new byte[data.remaining()];
+		data.duplicate().get(bytes);
+		return bytes;
+	}
+	
+	// the payload itself, only valid until the packet or the buffer it was parsed from is reused
+	public ByteBuffer getPayload() {
+		return data;
 	}
 	
 	//////////////////////////// UDP HELPERS ///////////////////////////////////////
 	
+	// serialize the packet at the position of dst, leaving dst positioned after the packet
+	public void encode(ByteBuffer dst) {
+		int position = data.position();
+		dst.putInt((session << 16) | type);
+		dst.putInt(seqnum);
+		dst.putInt(data.remaining());
+		dst.put(data);
+		data.position(position);
+	}
+	
 	public byte[] getUDPdata() {
-		ByteBuffer buffer = ByteBuffer.allocate(512);
-		buffer.putInt(type);
-        buffer.putInt(seqnum);
-        buffer.putInt(data.length());
-        buffer.put(data.getBytes(),0,data.length());
+		ByteBuffer buffer = ByteBuffer.allocate(headerLength + data.remaining());
+		encode(buffer);
 		return buffer.array();
 	}
 	
 	public static packet parseUDPdata(byte[] UDPdata) throws Exception {
-		ByteBuffer buffer = ByteBuffer.wrap(UDPdata);
-		int type = buffer.getInt();
-		int seqnum = buffer.getInt();
-		int length = buffer.getInt();
-		byte data[] = new byte[length];
-		buffer.get(data, 0, length);
-		return new packet(type, seqnum, new String(data));
-	}
-}
\ No newline at end of file
+		return parseUDPdata(ByteBuffer.wrap(UDPdata), new packet());
+	}
+	
+	// decode the datagram between position and limit of src into p without copying the payload,
+	// the payload of p becomes a view over src, so src is left limited to the payload.
+	// Bytes after the payload are ignored, nEmulator forwards datagrams padded to 512 bytes
+	public static packet parseUDPdata(ByteBuffer src, packet p) throws Exception {
+		if (src.remaining() < headerLength)
+			throw new Exception("datagram too short for a packet header");
+		int word = src.getInt();
+		int seqnum = src.getInt();
+		int length = src.getInt();
+		if (length < 0 || length > src.remaining())
+			throw new Exception("invalid data length " + length);
+		src.limit(src.position() + length);
+		p.set(word & 0xFFFF, seqnum, src);
+		return p.setSession(word >>> 16);
+	}
+}
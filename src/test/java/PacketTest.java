@@ -0,0 +1,123 @@
+/*
+ *
+ * File:   PacketTest.java
+ *
+ */
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/*
+ * Class Description:
+ *
+ *   Unit tests of the packet codec: the session and the type sharing the first header word,
+ *   decoding in place over a larger buffer, datagrams padded after the payload like nEmulator
+ *   forwards them, and datagrams too short for what their header claims.
+ *
+ */
+
+public class PacketTest {
+
+    private static ByteBuffer encode(packet p) {
+        ByteBuffer datagram = ByteBuffer.allocate(packet.headerLength + p.getLength());
+        p.encode(datagram);
+        datagram.flip();
+        return datagram;
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() throws Exception {
+        byte data[] = { 1, 2, 3, 4, 5 };
+        packet sent = packet.createPacket(77, data, data.length).setSession(513);
+        packet received = packet.parseUDPdata(encode(sent), new packet());
+        assertEquals(513, received.getSession());
+        assertEquals(1, received.getType());
+        assertEquals(77, received.getSeqNum());
+        assertArrayEquals(data, received.getData());
+    }
+
+    @Test
+    public void sessionZeroEncodesLikeNoSession() throws Exception {
+        ByteBuffer datagram = encode(packet.createACK(9));
+        assertEquals(0, datagram.getInt(0));
+        assertEquals(9, datagram.getInt(4));
+        assertEquals(0, datagram.getInt(8));
+        assertEquals(packet.headerLength, datagram.remaining());
+    }
+
+    @Test
+    public void highestSessionDoesNotSpillIntoTheType() throws Exception {
+        packet sent = packet.createParity(-1, ByteBuffer.allocate(3)).setSession(packet.maxSession);
+        packet received = packet.parseUDPdata(encode(sent), new packet());
+        assertEquals(packet.maxSession, received.getSession());
+        assertEquals(4, received.getType());
+        assertEquals(-1, received.getSeqNum());
+    }
+
+    @Test
+    public void paddingAfterThePayloadIsIgnored() throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(512);
+        packet.createEOT(3, ByteBuffer.wrap(new byte[] { 42, 43 })).encode(datagram);
+        datagram.clear();
+        packet received = packet.parseUDPdata(datagram, new packet());
+        assertEquals(2, received.getType());
+        assertArrayEquals(new byte[] { 42, 43 }, received.getData());
+        assertEquals(packet.headerLength + 2, datagram.limit());
+    }
+
+    @Test
+    public void decodesInPlaceAtAnyPosition() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(5);
+        packet.createPacket(8, ByteBuffer.wrap(new byte[] { 7, 7, 7 })).encode(buffer);
+        buffer.flip().position(5);
+        packet received = packet.parseUDPdata(buffer, new packet());
+        assertEquals(8, received.getSeqNum());
+        assertEquals(5 + packet.headerLength, received.getPayload().position());
+        /* The payload is a view, not a copy */
+        buffer.put(5 + packet.headerLength, (byte) 9);
+        assertEquals(9, received.getPayload().get(received.getPayload().position()));
+    }
+
+    @Test
+    public void encodeLeavesThePayloadAsItWas() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        packet p = packet.createPacket(0, data);
+        encode(p);
+        encode(p);
+        assertEquals(0, data.position());
+        assertEquals(3, p.getLength());
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsADatagramShorterThanTheHeader() throws Exception {
+        packet.parseUDPdata(ByteBuffer.allocate(packet.headerLength - 1), new packet());
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsAPayloadCutShort() throws Exception {
+        ByteBuffer datagram = encode(packet.createPacket(1, ByteBuffer.allocate(10)));
+        datagram.limit(datagram.limit() - 1);
+        packet.parseUDPdata(datagram, new packet());
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsANegativeLength() throws Exception {
+        ByteBuffer datagram = encode(packet.createPacket(1, ByteBuffer.allocate(4)));
+        datagram.putInt(8, -1);
+        packet.parseUDPdata(datagram, new packet());
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsAPayloadLargerThanADatagram() throws Exception {
+        packet.createPacket(1, ByteBuffer.allocate(packet.maxSegmentLength + 1));
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsASessionOutOfRange() throws Exception {
+        new packet().setSession(packet.maxSession + 1);
+    }
+}
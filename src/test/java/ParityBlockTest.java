@@ -0,0 +1,155 @@
+/*
+ *
+ * File:   ParityBlockTest.java
+ *
+ */
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * Class Description:
+ *
+ *   Unit tests of ParityBlock: rebuilding any one missing payload of a block, including the
+ *   short last segment of a stripe and lengths that are not a multiple of the 8-byte steps,
+ *   and refusing to when the parity cannot be of the payloads at hand.
+ *
+ */
+
+public class ParityBlockTest {
+
+    private static final int segmentSize = 16;
+
+    private static ByteBuffer bytes(int length, int seed) {
+        byte data[] = new byte[length];
+        new Random(seed).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+    /* Parity packet payload of the block, copied as the network would */
+    private static ByteBuffer parityOf(ByteBuffer... block) {
+        ParityBlock sender = new ParityBlock(segmentSize);
+        for (ByteBuffer data : block) {
+            sender.add(data);
+        }
+        ByteBuffer payload = sender.payload();
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        return copy;
+    }
+
+    /* Rebuild the payload at index missing of the block from the others and the parity */
+    private static ByteBuffer rebuild(ByteBuffer block[], int missing, ByteBuffer parity) {
+        ParityBlock receiver = new ParityBlock(segmentSize);
+        for (int i = 0; i < block.length; i++) {
+            if (i != missing) {
+                receiver.add(block[i]);
+            }
+        }
+        ByteBuffer dst = ByteBuffer.allocate(segmentSize);
+        assertTrue(receiver.recover(parity, dst));
+        return dst;
+    }
+
+    @Test
+    public void rebuildsEveryPayloadOfABlockWithAShortLastSegment() {
+        ByteBuffer block[] = { bytes(16, 1), bytes(16, 2), bytes(5, 3) };
+        ByteBuffer parity = parityOf(block);
+        assertEquals(ParityBlock.headerLength + 16, parity.remaining());
+        for (int missing = 0; missing < block.length; missing++) {
+            assertEquals(block[missing], rebuild(block, missing, parity));
+        }
+    }
+
+    @Test
+    public void rebuildsLengthsBetweenTheEightByteSteps() {
+        ByteBuffer block[] = { bytes(13, 4), bytes(3, 5), bytes(9, 6), bytes(1, 7) };
+        ByteBuffer parity = parityOf(block);
+        assertEquals(ParityBlock.headerLength + 13, parity.remaining());
+        for (int missing = 0; missing < block.length; missing++) {
+            assertEquals(block[missing], rebuild(block, missing, parity));
+        }
+    }
+
+    @Test
+    public void rebuildsAnEmptyPayload() {
+        ByteBuffer block[] = { bytes(16, 8), bytes(0, 9) };
+        assertEquals(0, rebuild(block, 1, parityOf(block)).remaining());
+    }
+
+    @Test
+    public void rebuildsTheOnlyPayloadOfABlockOfOne() {
+        ByteBuffer block[] = { bytes(7, 10) };
+        assertEquals(block[0], rebuild(block, 0, parityOf(block)));
+    }
+
+    @Test
+    public void readsTheParityWhereverThePayloadStarts() throws Exception {
+        ByteBuffer block[] = { bytes(16, 11), bytes(11, 12) };
+        ByteBuffer datagram = ByteBuffer.allocate(64);
+        packet.createParity(3, parityOf(block)).encode(datagram);
+        datagram.flip();
+        packet p = packet.parseUDPdata(datagram, new packet());
+        assertEquals(packet.headerLength, p.getPayload().position());
+        assertEquals(block[1], rebuild(block, 1, p.getPayload()));
+    }
+
+    @Test
+    public void refusesWhenMoreThanOnePayloadIsMissing() {
+        ByteBuffer block[] = { bytes(16, 13), bytes(16, 14), bytes(16, 15) };
+        ByteBuffer parity = parityOf(block);
+        ParityBlock receiver = new ParityBlock(segmentSize);
+        receiver.add(block[0]);
+        assertFalse(receiver.recover(parity, ByteBuffer.allocate(segmentSize)));
+    }
+
+    @Test
+    public void refusesAPayloadLongerThanTheDestination() {
+        ByteBuffer block[] = { bytes(4, 16), bytes(16, 17) };
+        ByteBuffer parity = parityOf(block);
+        ParityBlock receiver = new ParityBlock(segmentSize);
+        receiver.add(block[0]);
+        assertFalse(receiver.recover(parity, ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    public void refusesATruncatedParity() {
+        ByteBuffer block[] = { bytes(16, 18), bytes(16, 19) };
+        ByteBuffer parity = parityOf(block);
+        parity.limit(parity.limit() - 1);
+        ParityBlock receiver = new ParityBlock(segmentSize);
+        receiver.add(block[0]);
+        assertFalse(receiver.recover(parity, ByteBuffer.allocate(segmentSize)));
+        parity.limit(ParityBlock.headerLength - 1);
+        assertFalse(receiver.recover(parity, ByteBuffer.allocate(segmentSize)));
+    }
+
+    @Test
+    public void resetStartsAFreshBlock() {
+        ParityBlock parity = new ParityBlock(segmentSize);
+        parity.add(bytes(16, 20));
+        parity.add(bytes(16, 21));
+        parity.reset();
+        assertEquals(0, parity.getCount());
+        ByteBuffer block[] = { bytes(6, 22), bytes(6, 23) };
+        for (ByteBuffer data : block) {
+            parity.add(data);
+        }
+        ByteBuffer payload = parity.payload();
+        assertEquals(parityOf(block), payload);
+    }
+
+    @Test
+    public void leavesTheAddedPayloadsAsTheyWere() {
+        ByteBuffer data = bytes(16, 24);
+        data.position(3);
+        ParityBlock parity = new ParityBlock(segmentSize);
+        parity.add(data);
+        assertEquals(3, data.position());
+        assertEquals(16, data.limit());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ * File:   SequenceSpaceTest.java
+ *
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/*
+ * Class Description:
+ *
+ *   Unit tests of SequenceSpace: wrapping packet counters into the sequence numbers carried in
+ *   packets, and comparing them across the point where they wrap around.
+ *
+ */
+
+public class SequenceSpaceTest {
+
+    @Test
+    public void wrapKeepsTheLowBits() throws Exception {
+        SequenceSpace space = new SequenceSpace(5);
+        assertEquals(32, space.size());
+        assertEquals(1, space.wrap(33));
+        assertEquals(31, space.wrap(-1));
+        assertEquals(0, space.wrap(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void distanceGoesForwardAcrossTheWrap() throws Exception {
+        SequenceSpace space = new SequenceSpace(5);
+        assertEquals(4, space.distance(30, 2));
+        assertEquals(28, space.distance(2, 30));
+        assertEquals(0, space.distance(7, 7));
+        /* One step behind is a whole turn minus one ahead, how a duplicate ACK looks */
+        assertEquals(space.size() - 1, space.distance(0, 31));
+    }
+
+    @Test
+    public void thirtyTwoBitSpaceUsesEveryBit() throws Exception {
+        SequenceSpace space = new SequenceSpace(32);
+        assertEquals(1L << 32, space.size());
+        assertEquals(-1, space.wrap(-1));
+        assertEquals(2, space.distance(-1, 1));
+        assertEquals(0xFFFFFFFFL, space.distance(1, 0));
+        assertEquals(1L << 31, space.distance(Integer.MAX_VALUE, Integer.MAX_VALUE + (1 << 31)));
+    }
+
+    @Test
+    public void oneBitSpaceAlternates() throws Exception {
+        SequenceSpace space = new SequenceSpace(1);
+        assertEquals(2, space.size());
+        assertEquals(1, space.wrap(3));
+        assertEquals(1, space.distance(1, 0));
+    }
+
+    @Test
+    public void beforeComparesCountersThatWrapped() {
+        assertTrue(SequenceSpace.before(Integer.MAX_VALUE, Integer.MIN_VALUE));
+        assertFalse(SequenceSpace.before(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertTrue(SequenceSpace.before(-1, 0));
+        assertFalse(SequenceSpace.before(5, 5));
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsNoBits() throws Exception {
+        new SequenceSpace(0);
+    }
+
+    @Test(expected = Exception.class)
+    public void rejectsMoreThanThirtyTwoBits() throws Exception {
+        new SequenceSpace(33);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *
+ * File:   TimerWheelTest.java
+ *
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/*
+ * Class Description:
+ *
+ *   Unit tests of TimerWheel, on a small wheel of 8 slots of 10 ns so that timers more than a
+ *   turn ahead, the cursor jumping over whole turns and the deadlines of System.nanoTime
+ *   wrapping around are all a few ticks away.
+ *
+ */
+
+public class TimerWheelTest {
+
+    private static final long tick = 10;
+    private static final int slots = 8;
+
+    private final TimerWheel.Timer a = new TimerWheel.Timer(1, "a");
+    private final TimerWheel.Timer b = new TimerWheel.Timer(2, "b");
+    private final TimerWheel.Timer c = new TimerWheel.Timer(3, "c");
+
+    @Test
+    public void firesAtTheFirstTickAtOrAfterTheDeadline() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 25);
+        assertEquals(25, wheel.nextDeadline());
+        assertNull(wheel.poll(29));
+        assertSame(a, wheel.poll(30));
+        assertFalse(a.isScheduled());
+        assertTrue(wheel.isEmpty());
+        assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+    }
+
+    @Test
+    public void timerMoreThanATurnAheadWaitsForItsTick() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        /* Tick 17 shares slot 1 with ticks 1 and 9 */
+        wheel.schedule(a, 165);
+        assertNull(wheel.poll(15));
+        assertNull(wheel.poll(95));
+        assertNull(wheel.poll(165));
+        assertSame(a, wheel.poll(170));
+    }
+
+    @Test
+    public void restartingMovesTheTimer() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 50);
+        wheel.schedule(a, 20);
+        assertEquals(20, wheel.nextDeadline());
+        assertSame(a, wheel.poll(20));
+        assertNull(wheel.poll(100));
+    }
+
+    @Test
+    public void cancelledTimerNeverFires() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 20);
+        wheel.schedule(b, 20);
+        wheel.cancel(a);
+        wheel.cancel(a);
+        assertSame(b, wheel.poll(20));
+        assertNull(wheel.poll(1000));
+    }
+
+    @Test
+    public void cursorJumpAfterALongIdleStillFindsEveryTimer() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 35);
+        wheel.schedule(b, 55);
+        /* Hundreds of turns later, in no particular order */
+        TimerWheel.Timer first = wheel.poll(10000);
+        TimerWheel.Timer second = wheel.poll(10000);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertNull(wheel.poll(10000));
+        /* The cursor went on from there, a timer due now fires at once */
+        wheel.schedule(c, 5);
+        assertSame(c, wheel.poll(10000));
+    }
+
+    @Test
+    public void earliestAfterCancelLooksPastTimersOfLaterTurns() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 20);
+        /* Tick 9 in slot 1 comes before tick 5 in the wheel, but is a turn later */
+        wheel.schedule(b, 90);
+        wheel.schedule(c, 50);
+        assertEquals(20, wheel.nextDeadline());
+        wheel.cancel(a);
+        assertEquals(50, wheel.nextDeadline());
+        wheel.cancel(c);
+        assertEquals(90, wheel.nextDeadline());
+    }
+
+    @Test
+    public void earliestAfterALongIdleWithEveryTimerTurnsAway() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 0);
+        wheel.schedule(a, 1000000);
+        wheel.schedule(b, 1000050);
+        wheel.schedule(c, 2000000);
+        assertNull(wheel.poll(999990));
+        wheel.cancel(a);
+        assertEquals(1000050, wheel.nextDeadline());
+        wheel.cancel(b);
+        /* Only found by looking at every slot */
+        assertEquals(2000000, wheel.nextDeadline());
+        assertSame(c, wheel.poll(2000000));
+    }
+
+    @Test
+    public void deadlinesWrapAroundWithNanoTime() {
+        long origin = Long.MAX_VALUE - 15;
+        TimerWheel wheel = new TimerWheel(tick, slots, origin);
+        wheel.schedule(a, origin + 25);
+        wheel.schedule(b, origin + 5);
+        assertEquals(origin + 5, wheel.nextDeadline());
+        wheel.cancel(b);
+        assertEquals(origin + 25, wheel.nextDeadline());
+        assertNull(wheel.poll(origin + 29));
+        assertSame(a, wheel.poll(origin + 30));
+    }
+
+    @Test
+    public void deadlineInThePastFiresOnTheNextPoll() {
+        TimerWheel wheel = new TimerWheel(tick, slots, 1000);
+        assertNull(wheel.poll(2000));
+        wheel.schedule(a, 500);
+        assertSame(a, wheel.poll(2000));
+    }
+}